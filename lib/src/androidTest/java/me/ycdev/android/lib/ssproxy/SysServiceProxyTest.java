@@ -2,19 +2,28 @@ package me.ycdev.android.lib.ssproxy;
 
 import android.app.AlarmManager;
 import android.content.Context;
+import android.os.Build;
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.PowerManager;
+import android.os.RemoteException;
 import android.os.SystemClock;
 import android.test.AndroidTestCase;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import eu.chainfire.libsuperuser.Debug;
 import eu.chainfire.libsuperuser.Shell;
 import me.ycdev.android.lib.common.compat.PowerManagerCompat;
 import me.ycdev.android.lib.common.internalapi.android.os.PowerManagerIA;
+import me.ycdev.android.lib.common.internalapi.android.os.ServiceManagerIA;
 import me.ycdev.android.lib.ssproxy.proxy.ISysServiceProxy;
+import me.ycdev.android.lib.ssproxy.proxy.SspStats;
 import me.ycdev.android.lib.ssproxy.proxy.SysServiceProxyNative;
+import me.ycdev.android.lib.ssproxy.services.PowerManagerProxy;
 
 public class SysServiceProxyTest extends AndroidTestCase {
     public SysServiceProxyTest() {
@@ -144,6 +153,183 @@ public class SysServiceProxyTest extends AndroidTestCase {
         assertFalse("failed to stop daemon", ssp.isDaemonAlive());
     }
 
+    public void test_checkMissCached() {
+        SysServiceProxy ssp = SysServiceProxy.getInstance(getContext());
+        ssp.startDaemon();
+        assertTrue("failed to start daemon", ssp.isDaemonAlive());
+
+        String name = "ssp_no_such_service";
+        assertNull(ssp.checkService(name));
+        SspStats stats = ssp.getStats();
+        assertNotNull("failed to get stats", stats);
+        long lookups = stats.getServiceLookups();
+        // the second probe is answered by the check miss cache
+        assertNull(ssp.checkService(name));
+        assertEquals(lookups, ssp.getStats().getServiceLookups());
+
+        ssp.stopDaemon();
+        assertFalse("failed to stop daemon", ssp.isDaemonAlive());
+    }
+
+    public void test_getServices() {
+        SysServiceProxy ssp = SysServiceProxy.getInstance(getContext());
+        ssp.startDaemon();
+        assertTrue("failed to start daemon", ssp.isDaemonAlive());
+
+        IBinder[] binders = ssp.getServices(Context.POWER_SERVICE, "ssp_not_exist",
+                Context.ACTIVITY_SERVICE);
+        assertNotNull("failed to get services", binders);
+        assertEquals(3, binders.length);
+        assertNotNull("failed to get power binder", binders[0]);
+        assertNull("service should not exist", binders[1]);
+        assertNotNull("failed to get activity binder", binders[2]);
+        assertSame("binder not cached", binders[0], ssp.getService(Context.POWER_SERVICE));
+        doTestScreenOnOff(binders[0]);
+
+        ssp.stopDaemon();
+        assertFalse("failed to stop daemon", ssp.isDaemonAlive());
+    }
+
+    public void test_getServiceAsync() throws Exception {
+        SysServiceProxy ssp = SysServiceProxy.getInstance(getContext());
+        Future<Boolean> startResult = ssp.startDaemonAsync(null, null);
+        assertTrue("failed to start daemon", startResult.get(30, TimeUnit.SECONDS));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<IBinder> callbackResult = new AtomicReference<>();
+        Future<IBinder> result = ssp.getServiceAsync(Context.POWER_SERVICE, null,
+                new SysServiceProxy.Callback<IBinder>() {
+                    @Override
+                    public void onResult(IBinder result) {
+                        callbackResult.set(result);
+                        latch.countDown();
+                    }
+                });
+        IBinder powerBinder = result.get(10, TimeUnit.SECONDS);
+        assertNotNull("failed to get power binder", powerBinder);
+        assertTrue("callback not invoked", latch.await(10, TimeUnit.SECONDS));
+        assertSame(powerBinder, callbackResult.get());
+
+        ssp.stopDaemon();
+        assertFalse("failed to stop daemon", ssp.isDaemonAlive());
+    }
+
+    public void test_startDaemonConcurrently() throws Exception {
+        final SysServiceProxy ssp = SysServiceProxy.getInstance(getContext());
+        ssp.stopDaemon();
+
+        final StartupReport[] reports = new StartupReport[2];
+        Thread[] threads = new Thread[reports.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    reports[index] = ssp.startDaemonWithReport();
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(30 * 1000);
+        }
+
+        StartupReport launchReport = null;
+        for (StartupReport report : reports) {
+            assertNotNull(report);
+            assertTrue("failed to start daemon", report.isSuccessful());
+            if (!report.isAlreadyRunning()) {
+                // the concurrent calls share one in-flight start, and its report
+                assertTrue("daemon launched more than once",
+                        launchReport == null || launchReport == report);
+                launchReport = report;
+            }
+        }
+
+        ssp.stopDaemon();
+        assertFalse("failed to stop daemon", ssp.isDaemonAlive());
+    }
+
+    public void test_transact() throws Exception {
+        SysServiceProxy ssp = SysServiceProxy.getInstance(getContext());
+        ssp.startDaemon();
+        assertTrue("failed to start daemon", ssp.isDaemonAlive());
+
+        String stubClassName = "android.os.IPowerManager$Stub";
+        String descriptor = StubResolver.getDescriptor(stubClassName);
+        assertEquals("android.os.IPowerManager", descriptor);
+        int code = StubResolver.getTransactionCode(stubClassName, "isInteractive");
+        if (code == StubResolver.INVALID_CODE) {
+            code = StubResolver.getTransactionCode(stubClassName, "isScreenOn"); // old versions
+        }
+        assertTrue("failed to resolve the code", code != StubResolver.INVALID_CODE);
+        assertEquals(StubResolver.INVALID_CODE,
+                StubResolver.getTransactionCode(stubClassName, "noSuchMethod"));
+
+        PowerManager pm = (PowerManager) getContext().getSystemService(Context.POWER_SERVICE);
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(descriptor);
+            assertTrue(ssp.transact(Context.POWER_SERVICE, code, data, reply, 0));
+            reply.readException();
+            assertEquals(PowerManagerCompat.isScreenOn(pm), reply.readInt() != 0);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+
+        ssp.stopDaemon();
+        assertFalse("failed to stop daemon", ssp.isDaemonAlive());
+    }
+
+    public void test_typedProxy() throws Exception {
+        SysServiceProxy ssp = SysServiceProxy.getInstance(getContext());
+        ssp.startDaemon();
+        assertTrue("failed to start daemon", ssp.isDaemonAlive());
+
+        PowerManager pm = (PowerManager) getContext().getSystemService(Context.POWER_SERVICE);
+        assertEquals(PowerManagerCompat.isScreenOn(pm),
+                new PowerManagerProxy(ssp).isInteractive());
+
+        FallbackPowerManagerProxy fallbackProxy = new FallbackPowerManagerProxy(ssp);
+        assertEquals(PowerManagerCompat.isScreenOn(pm), fallbackProxy.isInteractive());
+        try {
+            fallbackProxy.noSuchMethod();
+            fail("unsupported method invoked");
+        } catch (UnsupportedMethodException ignored) {
+            // expected
+        }
+
+        ssp.stopDaemon();
+        assertFalse("failed to stop daemon", ssp.isDaemonAlive());
+    }
+
+    public void test_getStats() {
+        SysServiceProxy ssp = SysServiceProxy.getInstance(getContext());
+        ssp.startDaemon();
+        assertTrue("failed to start daemon", ssp.isDaemonAlive());
+
+        IBinder powerBinder = ssp.getService(Context.POWER_SERVICE);
+        assertNotNull("failed to get power binder", powerBinder);
+
+        SspStats stats = ssp.getStats();
+        assertNotNull("failed to get stats", stats);
+        assertTrue("no lookup recorded", stats.getServiceLookups() > 0);
+        boolean sspRecorded = false;
+        for (SspStats.Entry entry : stats.getEntries()) {
+            if (SspStats.SCOPE_SSP.equals(entry.getScope())
+                    && entry.getKey() == ISysServiceProxy.GET_SERVICE_TRANSACTION) {
+                sspRecorded = true;
+                assertEquals(SspStats.BUCKET_COUNT, entry.getBuckets().length);
+            }
+        }
+        assertTrue("transaction not recorded", sspRecorded);
+
+        ssp.stopDaemon();
+        assertFalse("failed to stop daemon", ssp.isDaemonAlive());
+    }
+
     public void testSspPermissionCheck() {
         SysServiceProxy ssp = SysServiceProxy.getInstance(getContext());
         ssp.stopDaemon();
@@ -192,4 +378,44 @@ public class SysServiceProxyTest extends AndroidTestCase {
         ssp.doStopDaemon(uid + 1);
         assertFalse("failed to stop daemon", ssp.isDaemonAlive());
     }
+
+    public void test_addTenantPermissionCheck() {
+        SysServiceProxy ssp = SysServiceProxy.getInstance(getContext());
+        assertTrue("failed to start daemon", ssp.startDaemon());
+
+        // even the owner cannot publish a tenant for any package
+        IBinder sspBinder = ServiceManagerIA.checkService(
+                SysServiceProxyDaemon.getSspServiceName(getContext().getPackageName()));
+        assertNotNull(sspBinder);
+        ISysServiceProxy sspService = SysServiceProxyNative.asInterface(sspBinder);
+        try {
+            sspService.addTenant(android.os.Process.myUid(), getContext().getPackageName(),
+                    ISysServiceProxy.SSP_VERSION, null);
+            fail("permission checking failed");
+        } catch (SecurityException ignored) {
+            // expected
+        }
+
+        ssp.stopDaemon();
+        assertFalse("failed to stop daemon", ssp.isDaemonAlive());
+    }
+
+    /**
+     * Always invoke by reflection, as if the transaction codes cannot be resolved.
+     */
+    private static class FallbackPowerManagerProxy extends TypedServiceProxy {
+        FallbackPowerManagerProxy(SysServiceProxy ssp) {
+            super(ssp, PowerManagerProxy.SERVICE_NAME,
+                    new String[] {"android.os.IPowerManager$Stub"});
+        }
+
+        boolean isInteractive() throws RemoteException {
+            String methodName = Build.VERSION.SDK_INT >= 20 ? "isInteractive" : "isScreenOn";
+            return (Boolean) invokeFallback(methodName, new Class<?>[0], new Object[0]);
+        }
+
+        void noSuchMethod() throws RemoteException {
+            invokeFallback("noSuchMethod", new Class<?>[0], new Object[0]);
+        }
+    }
 }
@@ -0,0 +1,67 @@
+package me.ycdev.android.lib.ssproxy;
+
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
+import me.ycdev.android.lib.ssproxy.utils.LibLogger;
+
+/**
+ * A call running in the async executor of {@link SysServiceProxy},
+ * and its result will be delivered to the callback when done.
+ */
+class AsyncCall<T> extends FutureTask<T> {
+    private static final String TAG = "AsyncCall";
+    private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
+
+    private final Executor mCallbackExecutor;
+    private final SysServiceProxy.Callback<T> mCallback;
+    private final T mFailedResult;
+
+    /**
+     * @param callbackExecutor Where to invoke the callback.
+     *                         If null, the callback will be invoked in the worker thread.
+     * @param failedResult The result delivered to the callback if the call failed
+     */
+    AsyncCall(Callable<T> callable, @Nullable Executor callbackExecutor,
+            @Nullable SysServiceProxy.Callback<T> callback, @Nullable T failedResult) {
+        super(callable);
+        mCallbackExecutor = callbackExecutor;
+        mCallback = callback;
+        mFailedResult = failedResult;
+    }
+
+    @Override
+    protected void done() {
+        if (mCallback == null || isCancelled()) {
+            return;
+        }
+
+        T result;
+        try {
+            result = get();
+        } catch (InterruptedException e) {
+            result = mFailedResult; // should not happen, we're done
+        } catch (ExecutionException e) {
+            if (DEBUG) LibLogger.w(TAG, "call failed: " + e.getCause());
+            result = mFailedResult;
+        }
+
+        final T finalResult = result;
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onResult(finalResult);
+            }
+        };
+        if (mCallbackExecutor != null) {
+            mCallbackExecutor.execute(task);
+        } else {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package me.ycdev.android.lib.ssproxy;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
+import me.ycdev.android.lib.ssproxy.utils.LibLogger;
+
+/**
+ * The slim dex jar of the daemon, packaged in the assets by the "DaemonDex" tasks
+ * in lib/build.gradle. It's much smaller than the app apk, so that app_process can
+ * start the daemon faster and with less memory.
+ */
+class DaemonJar {
+    private static final String TAG = "DaemonJar";
+    private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
+
+    private static final String ASSET_PATH = "ssproxy/daemon.jar";
+    private static final String JAR_DIR = "ssproxy";
+    private static final String JAR_NAME = "daemon.jar";
+
+    private static volatile boolean sDisabled;
+
+    /**
+     * Get the class path to run the daemon. The daemon jar will be extracted if needed,
+     * and the app apk will be used if the daemon jar is unavailable.
+     */
+    @NonNull
+    public static String getClassPath(Context cxt) {
+        if (!sDisabled) {
+            File jarFile = extractJar(cxt);
+            if (jarFile != null) {
+                return jarFile.getAbsolutePath();
+            }
+            sDisabled = true;
+        }
+        return cxt.getPackageCodePath();
+    }
+
+    public static boolean isEnabled() {
+        return !sDisabled;
+    }
+
+    /**
+     * Use the app apk to run the daemon from now on,
+     * for example, the daemon jar doesn't work on this device.
+     */
+    public static void disable() {
+        if (DEBUG) LibLogger.w(TAG, "daemon jar disabled");
+        sDisabled = true;
+    }
+
+    @Nullable
+    private static synchronized File extractJar(Context cxt) {
+        File jarFile = new File(cxt.getDir(JAR_DIR, Context.MODE_PRIVATE), JAR_NAME);
+        File apkFile = new File(cxt.getPackageCodePath());
+        if (jarFile.exists() && jarFile.lastModified() >= apkFile.lastModified()) {
+            return jarFile; // extracted after the app was installed or updated
+        }
+
+        if (DEBUG) LibLogger.d(TAG, "extract the daemon jar...");
+        // extract to a temp file first, the daemon may be loading the old one
+        File tmpFile = new File(jarFile.getPath() + ".tmp");
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = cxt.getAssets().open(ASSET_PATH);
+            out = new FileOutputStream(tmpFile);
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            if (DEBUG) LibLogger.w(TAG, "failed to extract the daemon jar: " + e);
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+
+        if (!tmpFile.renameTo(jarFile)) {
+            if (DEBUG) LibLogger.w(TAG, "failed to rename the daemon jar");
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        jarFile.setReadable(true, false);
+        return jarFile;
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
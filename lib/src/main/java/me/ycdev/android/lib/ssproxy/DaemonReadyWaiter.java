@@ -0,0 +1,244 @@
+package me.ycdev.android.lib.ssproxy;
+
+import android.os.FileObserver;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import me.ycdev.android.lib.common.utils.StringUtils;
+import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
+import me.ycdev.android.lib.ssproxy.utils.LibLogger;
+
+/**
+ * Wait for the ready token written by the daemon once its service is published.
+ * The stdout of the daemon is redirected to the ready file,
+ * see {@link SysServiceProxyDaemon#READY_TOKEN}.
+ */
+class DaemonReadyWaiter extends FileObserver {
+    private static final String TAG = "DaemonReadyWaiter";
+    private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
+
+    interface Listener {
+        /**
+         * Invoked in the file observer thread as soon as the ready token is received.
+         */
+        void onDaemonReady(int pid, int sspVersion);
+    }
+
+    private final File mReadyFile;
+    private final Listener mListener;
+    private final CountDownLatch mDoneLatch = new CountDownLatch(1);
+    private boolean mReady;
+    private volatile boolean mAborted;
+    private volatile boolean mRejected;
+    private volatile boolean mCommandSucceeded;
+    private int mPid;
+    private int mSspVersion;
+    private HashMap<String, Long> mDaemonPhases = new HashMap<>();
+    private long mReadyTime;
+
+    DaemonReadyWaiter(File readyFile, @Nullable Listener listener) {
+        super(readyFile.getParent(), MODIFY | CLOSE_WRITE);
+        mReadyFile = readyFile;
+        mListener = listener;
+    }
+
+    /**
+     * Should be invoked before the daemon is launched.
+     */
+    public void prepare() {
+        if (mReadyFile.exists() && !mReadyFile.delete()) {
+            if (DEBUG) LibLogger.w(TAG, "failed to delete the old ready file");
+        }
+        startWatching();
+    }
+
+    @Override
+    public void onEvent(int event, String path) {
+        if (!mReadyFile.getName().equals(path)) {
+            return;
+        }
+        if (!checkReady() && (event & CLOSE_WRITE) != 0) {
+            // the daemon closes its stdout only after the ready token was written
+            if (DEBUG) LibLogger.w(TAG, "ready file closed without the token, daemon failed?");
+            mAborted = true;
+            mDoneLatch.countDown();
+        }
+    }
+
+    /**
+     * Wait for the ready token.
+     * @return true if the daemon is ready
+     */
+    public boolean await(long timeoutMillis) {
+        try {
+            if (!checkReady()) {
+                mDoneLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            if (DEBUG) LibLogger.w(TAG, "interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            stopWatching();
+        }
+        boolean ready = checkReady();
+        if (!mReadyFile.delete()) {
+            if (DEBUG) LibLogger.d(TAG, "failed to delete the ready file");
+        }
+        return ready;
+    }
+
+    /**
+     * Stop waiting, for example, the daemon failed to be launched.
+     * Can be invoked in any thread.
+     */
+    public void cancel() {
+        stopWatching();
+        mDoneLatch.countDown();
+    }
+
+    /**
+     * The launch command exited successfully, so the daemon was loaded.
+     * Can be invoked in any thread.
+     */
+    public void onCommandSucceeded() {
+        mCommandSucceeded = true;
+    }
+
+    /**
+     * @return true if the daemon quit before writing the ready token
+     */
+    public boolean isAborted() {
+        return mAborted;
+    }
+
+    /**
+     * @return true if the daemon was loaded but refused to run,
+     * see {@link SysServiceProxyDaemon#REJECTED_TOKEN}
+     */
+    public boolean isRejected() {
+        return mRejected;
+    }
+
+    /**
+     * @return true if the daemon quit without any token, and we don't know it was loaded,
+     * most likely it failed to load
+     */
+    public boolean isLoadFailed() {
+        return mAborted && !mRejected && !mCommandSucceeded;
+    }
+
+    public synchronized int getPid() {
+        return mPid;
+    }
+
+    public synchronized int getSspVersion() {
+        return mSspVersion;
+    }
+
+    /**
+     * @return the startup phases reported by the daemon, with the phase names as keys
+     */
+    public synchronized HashMap<String, Long> getDaemonPhases() {
+        return new HashMap<>(mDaemonPhases);
+    }
+
+    /**
+     * @return when the ready token was detected, or 0 if not ready
+     */
+    public synchronized long getReadyTime() {
+        return mReadyTime;
+    }
+
+    private boolean checkReady() {
+        synchronized (this) {
+            if (mReady) {
+                return true;
+            }
+            if (!readToken()) {
+                return false;
+            }
+            mReady = true;
+            mReadyTime = SystemClock.elapsedRealtime();
+        }
+        if (DEBUG) LibLogger.d(TAG, "daemon ready, pid: {}, version: {}", mPid, mSspVersion);
+        mDoneLatch.countDown();
+        if (mListener != null) {
+            mListener.onDaemonReady(mPid, mSspVersion);
+        }
+        return true;
+    }
+
+    private boolean readToken() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mReadyFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (parseToken(line)) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            // the file not created yet
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean parseToken(String line) {
+        String[] fields = line.trim().split(" ");
+        if (SysServiceProxyDaemon.REJECTED_TOKEN.equals(fields[0])) {
+            if (DEBUG) LibLogger.w(TAG, "daemon rejected: " + line);
+            mRejected = true;
+            return false;
+        }
+        if (fields.length < 3 || !SysServiceProxyDaemon.READY_TOKEN.equals(fields[0])) {
+            return false;
+        }
+        int pid = 0;
+        int sspVersion = 0;
+        HashMap<String, Long> phases = new HashMap<>();
+        for (int i = 1; i < fields.length; i++) {
+            if (fields[i].startsWith(SysServiceProxyDaemon.READY_PID)) {
+                pid = StringUtils.parseInt(
+                        fields[i].substring(SysServiceProxyDaemon.READY_PID.length()), 0);
+            } else if (fields[i].startsWith(SysServiceProxyDaemon.READY_VERSION)) {
+                sspVersion = StringUtils.parseInt(
+                        fields[i].substring(SysServiceProxyDaemon.READY_VERSION.length()), 0);
+            } else if (fields[i].startsWith(SysServiceProxyDaemon.READY_PHASE_PREFIX)) {
+                int pos = fields[i].indexOf('=');
+                if (pos > 0) {
+                    try {
+                        phases.put(fields[i].substring(
+                                SysServiceProxyDaemon.READY_PHASE_PREFIX.length(), pos),
+                                Long.parseLong(fields[i].substring(pos + 1)));
+                    } catch (NumberFormatException e) {
+                        // incomplete line or bad value, ignore the phase
+                    }
+                }
+            }
+        }
+        if (pid <= 0) {
+            return false; // incomplete line
+        }
+        mPid = pid;
+        mSspVersion = sspVersion;
+        mDaemonPhases = phases;
+        return true;
+    }
+}
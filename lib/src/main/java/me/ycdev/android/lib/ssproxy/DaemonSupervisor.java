@@ -0,0 +1,200 @@
+package me.ycdev.android.lib.ssproxy;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import me.ycdev.android.lib.common.internalapi.android.os.ServiceManagerIA;
+import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
+import me.ycdev.android.lib.ssproxy.utils.LibLogger;
+
+/**
+ * Watch the death of the daemon and restart it in background,
+ * with exponential backoff and jitter between the failed attempts.
+ * <p>If the standby daemon is enabled, a pre-spawned daemon will take over as soon as
+ * the current daemon died, and a new standby daemon will be spawned after that.
+ * The daemon is only restarted if the standby daemon didn't take over in time.</p>
+ */
+class DaemonSupervisor implements IBinder.DeathRecipient {
+    private static final String TAG = "DaemonSupervisor";
+    private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
+
+    // give the standby daemon a chance to take over before restarting
+    private static final long FIRST_RESTART_DELAY = 100;
+    // keep waiting for the standby daemon's promotion, instead of starting a second daemon
+    private static final long STANDBY_TAKEOVER_TIMEOUT = 3000;
+    private static final long STANDBY_POLL_INTERVAL = 100;
+    private static final long BACKOFF_INITIAL_DELAY = 1000; // 1 second
+    private static final long BACKOFF_MAX_DELAY = 5 * 60 * 1000; // 5 minutes
+
+    private final SysServiceProxy mSsp;
+    private final String mSspName;
+    private final boolean mUseStandby;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final Random mRandom = new Random();
+
+    private boolean mRunning;
+    private IBinder mWatchedBinder;
+    private int mFailedAttempts;
+    private ScheduledFuture<?> mPendingRestart;
+    private boolean mStandbyReady;
+    private long mTakeoverDeadline; // uptime millis, 0 if not waiting for the standby daemon
+
+    DaemonSupervisor(SysServiceProxy ssp, String sspName, boolean useStandby) {
+        mSsp = ssp;
+        mSspName = sspName;
+        mUseStandby = useStandby;
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, "ssp-supervisor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mFailedAttempts = 0;
+        scheduleCheck(0);
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        if (mPendingRestart != null) {
+            mPendingRestart.cancel(false);
+            mPendingRestart = null;
+        }
+        unwatchDaemon();
+        mExecutor.shutdown();
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    @Override
+    public void binderDied() {
+        if (DEBUG) LibLogger.d(TAG, "daemon died");
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mWatchedBinder = null;
+            mFailedAttempts = 0;
+            mTakeoverDeadline = mStandbyReady
+                    ? SystemClock.uptimeMillis() + STANDBY_TAKEOVER_TIMEOUT : 0;
+            mStandbyReady = false;
+            scheduleCheck(FIRST_RESTART_DELAY);
+        }
+    }
+
+    private void scheduleCheck(long delayMillis) {
+        if (DEBUG) LibLogger.d(TAG, "check daemon in {}ms", delayMillis);
+        mPendingRestart = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkDaemon();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkDaemon() {
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+        }
+
+        // the standby daemon may have taken over
+        boolean alive = mSsp.isDaemonAlive();
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            if (!alive && SystemClock.uptimeMillis() < mTakeoverDeadline) {
+                // the standby daemon is being promoted, don't start another one
+                scheduleCheck(STANDBY_POLL_INTERVAL);
+                return;
+            }
+            mTakeoverDeadline = 0;
+        }
+        if (!alive) {
+            alive = mSsp.startDaemon();
+        }
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            if (!alive || !watchDaemon()) {
+                mFailedAttempts++;
+                scheduleCheck(getBackoffDelay(mFailedAttempts));
+                return;
+            }
+            mFailedAttempts = 0;
+            mPendingRestart = null;
+        }
+
+        if (mUseStandby) {
+            boolean standbyReady = mSsp.startStandbyDaemon();
+            if (!standbyReady) {
+                if (DEBUG) LibLogger.w(TAG, "failed to start the standby daemon");
+            }
+            synchronized (this) {
+                mStandbyReady = standbyReady;
+                // stopped while launching, don't leave the standby daemon behind
+                if (mRunning || !standbyReady) {
+                    return;
+                }
+                mStandbyReady = false;
+            }
+            mSsp.dismissStandbyDaemon();
+        }
+    }
+
+    /**
+     * The delay grows exponentially, with random jitter to avoid restarting in lockstep.
+     */
+    private long getBackoffDelay(int failedAttempts) {
+        long delay = BACKOFF_INITIAL_DELAY << Math.min(failedAttempts - 1, 16);
+        delay = Math.min(delay, BACKOFF_MAX_DELAY);
+        // half fixed, half random
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    private boolean watchDaemon() {
+        IBinder sspBinder = ServiceManagerIA.checkService(mSspName);
+        if (sspBinder == null) {
+            return false;
+        }
+        if (sspBinder == mWatchedBinder) {
+            return true;
+        }
+        unwatchDaemon();
+        try {
+            sspBinder.linkToDeath(this, 0);
+        } catch (RemoteException e) {
+            return false;
+        }
+        mWatchedBinder = sspBinder;
+        return true;
+    }
+
+    private void unwatchDaemon() {
+        if (mWatchedBinder != null) {
+            mWatchedBinder.unlinkToDeath(this, 0);
+            mWatchedBinder = null;
+        }
+    }
+}
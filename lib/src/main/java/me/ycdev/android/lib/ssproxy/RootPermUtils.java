@@ -1,13 +1,26 @@
 package me.ycdev.android.lib.ssproxy;
 
 import android.content.Context;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
 import eu.chainfire.libsuperuser.Shell;
 
 class RootPermUtils {
+    private static volatile Boolean sSELinuxEnforced;
+
     public static String[] getRootJarCommand(Context cxt, String cmd, String... cmdParams) {
-        String exportCmd = "export CLASSPATH=" + cxt.getPackageCodePath();
+        return getRootJarCommand(cxt, false, null, cmd, cmdParams);
+    }
+
+    /**
+     * @param detached If true, the command will be run in background,
+     *                 so that it can be executed in a long-lived shell.
+     * @param stdoutFile If not null, the stdout of the command will be redirected to this file.
+     */
+    public static String[] getRootJarCommand(Context cxt, boolean detached,
+            @Nullable String stdoutFile, String cmd, String... cmdParams) {
+        String exportCmd = "export CLASSPATH=" + DaemonJar.getClassPath(cxt);
         String rootJarCmd = "/system/bin/app_process /system/bin "
                 + SysServiceProxyDaemon.class.getName() + " " + cmd;
         if (cmdParams.length > 0) {
@@ -15,19 +28,47 @@ class RootPermUtils {
                 rootJarCmd = rootJarCmd + " " + p;
             }
         }
+        if (detached) {
+            rootJarCmd = rootJarCmd + " " + SysServiceProxyDaemon.OPT_DETACHED + "=1 </dev/null";
+        }
+        if (stdoutFile != null) {
+            rootJarCmd = rootJarCmd + " >" + stdoutFile;
+        } else if (detached) {
+            rootJarCmd = rootJarCmd + " >/dev/null";
+        }
+        if (detached) {
+            rootJarCmd = rootJarCmd + " 2>/dev/null &";
+        }
         return new String[] { exportCmd, rootJarCmd };
     }
 
-    public static void runSuCommand(String[] cmds, String selinuxContext) {
+    /**
+     * @return false if failed to run the su shell
+     */
+    public static boolean runSuCommand(String[] cmds, String selinuxContext) {
+        String shell = getSuShell(selinuxContext);
+        return Shell.run(shell != null ? shell : "su", cmds, null, false, false) != null;
+    }
+
+    /**
+     * Get the su shell command with the SELinux context.
+     * @return null if the SELinux context is not needed
+     */
+    @Nullable
+    public static String getSuShell(String selinuxContext) {
         if (!TextUtils.isEmpty(selinuxContext) && isSELinuxEnforced()) {
-            String shell = Shell.SU.shell(0, selinuxContext);
-            Shell.run(shell, cmds, null, false, false);
-        } else {
-            Shell.run("su", cmds, null, false, false);
+            return Shell.SU.shell(0, selinuxContext);
         }
+        return null;
     }
 
     private static boolean isSELinuxEnforced() {
-        return Shell.SU.isSELinuxEnforcing();
+        // probe only once, it needs to spawn a su process on some devices
+        Boolean enforced = sSELinuxEnforced;
+        if (enforced == null) {
+            enforced = Shell.SU.isSELinuxEnforcing();
+            sSELinuxEnforced = enforced;
+        }
+        return enforced;
     }
 }
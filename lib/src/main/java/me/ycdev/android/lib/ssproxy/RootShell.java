@@ -0,0 +1,94 @@
+package me.ycdev.android.lib.ssproxy;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.chainfire.libsuperuser.Shell;
+import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
+import me.ycdev.android.lib.ssproxy.utils.LibLogger;
+
+/**
+ * A long-lived root shell which can be reused by many root commands,
+ * to avoid spawning a new su process (and the grant round trip) for each one.
+ */
+class RootShell {
+    private static final String TAG = "RootShell";
+    private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
+
+    private static final int WATCHDOG_TIMEOUT = 30; // seconds
+
+    private String mSelinuxContext;
+    private Shell.Interactive mShell;
+
+    RootShell(String selinuxContext) {
+        mSelinuxContext = selinuxContext;
+    }
+
+    /**
+     * Run the commands in the root shell, and the shell will be opened if needed.
+     * Cannot be invoked in UI thread.
+     * <p>Note: true only means the commands were executed. The exit code of a command
+     * run in background (such as the detached daemon) is always 0, so the caller should
+     * check the result by itself.</p>
+     * @return false if failed to open the root shell or the commands were not executed.
+     */
+    public synchronized boolean run(String[] cmds) {
+        if (!ensureShellOpened()) {
+            return false;
+        }
+
+        final AtomicInteger result = new AtomicInteger(Shell.OnCommandResultListener.SHELL_DIED);
+        mShell.addCommand(cmds, 0, new Shell.OnCommandResultListener() {
+            @Override
+            public void onCommandResult(int commandCode, int exitCode, List<String> output) {
+                result.set(exitCode);
+            }
+        });
+        mShell.waitForIdle();
+        if (DEBUG) LibLogger.d(TAG, "command result: {}", result.get());
+        return result.get() >= 0;
+    }
+
+    private boolean ensureShellOpened() {
+        if (mShell != null && mShell.isRunning()) {
+            return true;
+        }
+
+        if (DEBUG) LibLogger.d(TAG, "open root shell...");
+        Shell.Builder builder = new Shell.Builder()
+                .setWantSTDERR(false)
+                .setMinimalLogging(true)
+                .setAutoHandler(false) // callbacks in the gobbler threads
+                .setWatchdogTimeout(WATCHDOG_TIMEOUT);
+        String shell = RootPermUtils.getSuShell(mSelinuxContext);
+        if (shell != null) {
+            builder.setShell(shell);
+        } else {
+            builder.useSU();
+        }
+
+        final AtomicInteger openResult = new AtomicInteger(
+                Shell.OnCommandResultListener.SHELL_DIED);
+        mShell = builder.open(new Shell.OnCommandResultListener() {
+            @Override
+            public void onCommandResult(int commandCode, int exitCode, List<String> output) {
+                openResult.set(exitCode);
+            }
+        });
+        mShell.waitForIdle();
+        if (openResult.get() != Shell.OnCommandResultListener.SHELL_RUNNING) {
+            if (DEBUG) LibLogger.w(TAG, "failed to open root shell: " + openResult.get());
+            mShell.close();
+            mShell = null;
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized void close() {
+        if (mShell != null) {
+            mShell.close();
+            mShell = null;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package me.ycdev.android.lib.ssproxy;
+
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
+import me.ycdev.android.lib.ssproxy.utils.LibLogger;
+
+/**
+ * Deduplicate an operation across threads: if it's in flight already,
+ * the callers will wait for it and share its result instead of running it again.
+ */
+class SingleFlight<T> {
+    private static final String TAG = "SingleFlight";
+    private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
+
+    private FutureTask<T> mPending;
+
+    /**
+     * Run the operation in the caller thread, or join the in-flight one.
+     * @param failedResult Returned if the operation threw a checked exception
+     *                     or the caller was interrupted
+     */
+    public T run(Callable<T> operation, @Nullable T failedResult) {
+        FutureTask<T> task;
+        boolean owner = false;
+        synchronized (this) {
+            if (mPending == null) {
+                mPending = new FutureTask<>(operation);
+                owner = true;
+            }
+            task = mPending;
+        }
+
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    if (mPending == task) {
+                        mPending = null;
+                    }
+                }
+            }
+        } else {
+            if (DEBUG) LibLogger.d(TAG, "join the in-flight operation");
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failedResult;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (DEBUG) LibLogger.w(TAG, "operation failed: " + cause);
+            return failedResult;
+        }
+    }
+
+    /**
+     * Let the next callers run the operation again instead of joining the in-flight one,
+     * whose result may be stale already. The callers joined already still share it.
+     */
+    public synchronized void detach() {
+        mPending = null;
+    }
+}
@@ -0,0 +1,174 @@
+package me.ycdev.android.lib.ssproxy;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Timeline of a daemon startup, merged from the phases of this process and the daemon.
+ * All the timestamps are values of {@link android.os.SystemClock#elapsedRealtime()},
+ * which is shared by all processes.
+ */
+public class StartupReport {
+    // phases in this process
+    public static final String PHASE_START = "start";
+    public static final String PHASE_SELINUX_PROBED = "selinux_probed";
+    // the root command returned, may be recorded after the startup finished;
+    // for the su command, that's when the daemon released the shell
+    public static final String PHASE_COMMAND_DONE = "command_done";
+    public static final String PHASE_READY = "ready";
+    public static final String PHASE_DONE = "done";
+
+    // phases in the daemon, see SysServiceProxyDaemon
+    public static final String DAEMON_PHASE_PREFIX = "daemon_";
+
+    private final ArrayList<Phase> mPhases = new ArrayList<>();
+    // written by the launcher threads
+    private volatile boolean mSuccessful;
+    private volatile boolean mAlreadyRunning;
+    private volatile boolean mDaemonJarUsed;
+    private volatile int mDaemonPid;
+
+    public static class Phase {
+        private String mName;
+        private long mTimestamp;
+
+        Phase(String name, long timestamp) {
+            mName = name;
+            mTimestamp = timestamp;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+    }
+
+    /**
+     * Add a phase, or update its timestamp if it exists, for example, the start is retried.
+     */
+    synchronized void addPhase(String name, long timestamp) {
+        for (Phase phase : mPhases) {
+            if (phase.mName.equals(name)) {
+                phase.mTimestamp = timestamp;
+                return;
+            }
+        }
+        mPhases.add(new Phase(name, timestamp));
+    }
+
+    void addPhase(String name) {
+        addPhase(name, SystemClock.elapsedRealtime());
+    }
+
+    void setSuccessful(boolean successful) {
+        mSuccessful = successful;
+    }
+
+    void setAlreadyRunning(boolean alreadyRunning) {
+        mAlreadyRunning = alreadyRunning;
+    }
+
+    void setDaemonJarUsed(boolean used) {
+        mDaemonJarUsed = used;
+    }
+
+    void setDaemonPid(int pid) {
+        mDaemonPid = pid;
+    }
+
+    public boolean isSuccessful() {
+        return mSuccessful;
+    }
+
+    /**
+     * @return true if the daemon was running already, no new daemon started
+     */
+    public boolean isAlreadyRunning() {
+        return mAlreadyRunning;
+    }
+
+    /**
+     * @return true if the daemon was started with the slim daemon jar, not the app apk
+     */
+    public boolean isDaemonJarUsed() {
+        return mDaemonJarUsed;
+    }
+
+    /**
+     * @return 0 if unknown
+     */
+    public int getDaemonPid() {
+        return mDaemonPid;
+    }
+
+    /**
+     * Get the phases in time order.
+     */
+    @NonNull
+    public synchronized List<Phase> getPhases() {
+        ArrayList<Phase> phases = new ArrayList<>(mPhases);
+        Collections.sort(phases, new Comparator<Phase>() {
+            @Override
+            public int compare(Phase lhs, Phase rhs) {
+                return lhs.mTimestamp < rhs.mTimestamp ? -1
+                        : (lhs.mTimestamp == rhs.mTimestamp ? 0 : 1);
+            }
+        });
+        return phases;
+    }
+
+    /**
+     * @return -1 if the phase not found
+     */
+    public synchronized long getPhaseTime(String name) {
+        for (Phase phase : mPhases) {
+            if (phase.mName.equals(name)) {
+                return phase.mTimestamp;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Milliseconds from {@link #PHASE_START} to {@link #PHASE_DONE}
+     */
+    public long getTotalTime() {
+        long start = getPhaseTime(PHASE_START);
+        long done = getPhaseTime(PHASE_DONE);
+        return start >= 0 && done >= 0 ? done - start : -1;
+    }
+
+    public synchronized void dump(PrintWriter fout) {
+        fout.println("Startup: " + (mSuccessful ? "successful" : "failed")
+                + (mAlreadyRunning ? ", already running" : "")
+                + ", daemon jar: " + mDaemonJarUsed
+                + ", pid: " + mDaemonPid
+                + ", total " + getTotalTime() + "ms");
+        long start = getPhaseTime(PHASE_START);
+        long last = start;
+        for (Phase phase : getPhases()) {
+            fout.println("\t" + phase.mName + ": +" + (phase.mTimestamp - start)
+                    + "ms (" + (phase.mTimestamp - last) + "ms)");
+            last = phase.mTimestamp;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringWriter writer = new StringWriter();
+        PrintWriter fout = new PrintWriter(writer);
+        dump(fout);
+        fout.flush();
+        return writer.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package me.ycdev.android.lib.ssproxy;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
+import me.ycdev.android.lib.ssproxy.utils.LibLogger;
+
+/**
+ * Resolve the transaction codes and interface descriptors from the AIDL stub classes,
+ * such as "android.os.IPowerManager$Stub". The results (including the failures)
+ * are cached, so the reflection happens only once per process.
+ * <p>Work with {@link SysServiceProxy#transact(String, int, android.os.Parcel,
+ * android.os.Parcel, int)} to write the parcels directly.</p>
+ */
+public class StubResolver {
+    private static final String TAG = "StubResolver";
+    private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
+
+    public static final int INVALID_CODE = -1;
+
+    private static final String DESCRIPTOR_FIELD = "DESCRIPTOR";
+    private static final String TRANSACTION_PREFIX = "TRANSACTION_";
+    private static final String NOT_FOUND = ""; // ConcurrentHashMap doesn't accept null
+
+    // "className#fieldName" -> code
+    private static final ConcurrentHashMap<String, Integer> sCodes = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, String> sDescriptors =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Get the transaction code of the method, from the field "TRANSACTION_&lt;method&gt;".
+     * @param stubClassName For example, "android.os.IPowerManager$Stub"
+     * @param methodName For example, "goToSleep"
+     * @return {@link #INVALID_CODE} if not found
+     */
+    public static int getTransactionCode(@NonNull String stubClassName,
+            @NonNull String methodName) {
+        return getCodeConstant(stubClassName, TRANSACTION_PREFIX + methodName);
+    }
+
+    /**
+     * Get the transaction code from an int constant, for the interfaces not generated
+     * by AIDL, such as "android.app.IActivityManager#FORCE_STOP_PACKAGE_TRANSACTION"
+     * before Android 8.0.
+     * @return {@link #INVALID_CODE} if not found
+     */
+    public static int getCodeConstant(@NonNull String className, @NonNull String fieldName) {
+        String key = className + "#" + fieldName;
+        Integer code = sCodes.get(key);
+        if (code == null) {
+            Object value = getStaticField(className, fieldName);
+            code = value instanceof Integer ? (Integer) value : INVALID_CODE;
+            sCodes.put(key, code);
+        }
+        return code;
+    }
+
+    /**
+     * Get the interface descriptor, from the field "DESCRIPTOR" of the stub class.
+     * @param stubClassName For example, "android.os.IPowerManager$Stub"
+     * @return null if not found
+     */
+    @Nullable
+    public static String getDescriptor(@NonNull String stubClassName) {
+        String descriptor = sDescriptors.get(stubClassName);
+        if (descriptor == null) {
+            Object value = getStaticField(stubClassName, DESCRIPTOR_FIELD);
+            descriptor = value instanceof String ? (String) value : NOT_FOUND;
+            sDescriptors.put(stubClassName, descriptor);
+        }
+        return descriptor.length() > 0 ? descriptor : null;
+    }
+
+    @Nullable
+    private static Object getStaticField(String className, String fieldName) {
+        try {
+            Field field = Class.forName(className).getDeclaredField(fieldName);
+            field.setAccessible(true);
+            return field.get(null);
+        } catch (Exception e) {
+            // the method may be missing on some ROMs
+            if (DEBUG) LibLogger.w(TAG, "failed to resolve " + className + "." + fieldName
+                    + ": " + e);
+            return null;
+        }
+    }
+}
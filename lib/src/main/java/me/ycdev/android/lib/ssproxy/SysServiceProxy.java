@@ -1,14 +1,36 @@
 package me.ycdev.android.lib.ssproxy;
 
 import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.Parcel;
+import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import me.ycdev.android.lib.common.annotation.VisibleForTesting;
 import me.ycdev.android.lib.common.internalapi.android.os.ServiceManagerIA;
 import me.ycdev.android.lib.ssproxy.proxy.ISysServiceProxy;
+import me.ycdev.android.lib.ssproxy.proxy.MissingServiceCache;
+import me.ycdev.android.lib.ssproxy.proxy.OwnerToken;
+import me.ycdev.android.lib.ssproxy.proxy.SspStats;
 import me.ycdev.android.lib.ssproxy.proxy.SysServiceProxyNative;
 import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
 import me.ycdev.android.lib.ssproxy.utils.LibLogger;
@@ -20,24 +42,101 @@ import me.ycdev.android.lib.ssproxy.utils.LibLogger;
  * When {@link #startDaemon()} is invoked and the daemon is started,
  * a new service "ssproxy_<i>xxxxxx</i>" will be added into the system service manager,
  * and a new process "ssproxy_<i>yyyyyy</i>" will be started.
+ * <p/>
+ * The returned service binders are forwarded by the daemon, so they die with the daemon,
+ * for example, when it's replaced by a newer daemon or restarted. The lookups switch to
+ * the new daemon by themselves, but a binder held by the caller is not replaced:
+ * get it again on {@link android.os.DeadObjectException}, or use {@link TypedServiceProxy}
+ * which gets the binder for every call.
  */
 public class SysServiceProxy {
     private static final String TAG = "SysServiceProxy";
     private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
 
-    static final String SSP_NAME_PREFIX = "ssproxy_";
+    private static final String SELINUX_CONTEXT = "u:object_r:default_android_service:s0";
+
+    // one file per launch: "ssproxy_ready_<pid>_<launch count>"
+    private static final String READY_FILE_PREFIX = "ssproxy_ready_";
+    private static final String STANDBY_READY_FILE_PREFIX = "ssproxy_standby_ready_";
+    private static final String USAGE_PROFILE_FILE_NAME = "ssproxy_usage";
+    private static final long DAEMON_READY_TIMEOUT = 10 * 1000; // 10 seconds
+    // the ready files left by the failed launches, which are deleted at the next launch
+    private static final long STALE_READY_FILE_AGE = 60 * 1000; // 1 minute
+    private static final long SHUTDOWN_EXTRA_WAIT_TIME = 1000; // 1 second
+
+    private static final int ASYNC_THREADS = 2;
+    private static final long ASYNC_THREAD_KEEP_ALIVE = 30 * 1000; // 30 seconds
+
+    public interface Callback<T> {
+        /**
+         * @param result The result of the async call, the same as the sync version.
+         *               It's null or false if the call failed.
+         */
+        void onResult(T result);
+    }
+
+    public interface OnDaemonReadyListener {
+        /**
+         * Invoked as soon as the daemon has published its service, and it may be earlier
+         * than {@link #startDaemon()} returns. It's invoked in a background thread.
+         */
+        void onDaemonReady(int pid, int sspVersion);
+    }
 
     private Context mAppContext;
     private int mUid;
     private String mPkgName;
     private String mSspName;
 
+    private int mDaemonCacheMaxSize;
+    private long mDaemonCacheIdleTimeout;
+    private long mMissingServiceTtl = -1; // the daemon default
+    private int mDaemonLogLevel = -1; // the daemon default
+    private int mDaemonLogBufferCapacity;
+    private boolean mDaemonLogcatEnabled = true;
+    private boolean mUseSharedDaemon;
+    private boolean mDaemonPrefetchEnabled = true;
+    private final MissingServiceCache mMissingServices = new MissingServiceCache(0);
+    private long mCheckMissTtl = -1; // the daemon default
+    private final MissingServiceCache mCheckMisses =
+            new MissingServiceCache(MissingServiceCache.DEFAULT_CHECK_TTL);
+
+    private volatile RootShell mRootShell;
+    private volatile boolean mDaemonExitWithOwner;
+    // the daemon watches its death if mDaemonExitWithOwner is enabled
+    private final OwnerToken mOwnerToken = new OwnerToken();
+    private final CopyOnWriteArrayList<OnDaemonReadyListener> mReadyListeners =
+            new CopyOnWriteArrayList<>();
+    private final DaemonReadyWaiter.Listener mReadyDispatcher = new DaemonReadyWaiter.Listener() {
+        @Override
+        public void onDaemonReady(int pid, int sspVersion) {
+            for (OnDaemonReadyListener listener : mReadyListeners) {
+                listener.onDaemonReady(pid, sspVersion);
+            }
+        }
+    };
+
+    private ThreadPoolExecutor mAsyncExecutor;
+    private ThreadPoolExecutor mDaemonAsyncExecutor;
+    private DaemonSupervisor mSupervisor;
+    private volatile StartupReport mLastStartupReport;
+
+    // serialize the daemon start/stop, and share the in-flight one with concurrent callers
+    private final Object mDaemonOpLock = new Object();
+    private final SingleFlight<StartupReport> mStartFlight = new SingleFlight<>();
+    private final SingleFlight<Boolean> mStopFlight = new SingleFlight<>();
+    private final AtomicInteger mLaunchCount = new AtomicInteger();
+
+    private final Object mSspLock = new Object();
+    private volatile ISysServiceProxy mSspService;
+    private SspDeathRecipient mSspDeathRecipient;
+
     private static volatile SysServiceProxy sInstance;
     private SysServiceProxy(Context cxt) {
         mAppContext = cxt.getApplicationContext();
         mUid = android.os.Process.myUid();
         mPkgName = cxt.getPackageName();
-        mSspName = getSspServiceName(mPkgName);
+        mSspName = SysServiceProxyDaemon.getSspServiceName(mPkgName);
     }
 
     public static SysServiceProxy getInstance(Context cxt) {
@@ -51,8 +150,62 @@ public class SysServiceProxy {
         return sInstance;
     }
 
-    static String getSspServiceName(String pkgName) {
-        return SSP_NAME_PREFIX + pkgName;
+    /**
+     * Get an executor which runs tasks in the looper thread.
+     */
+    public static Executor getLooperExecutor(Looper looper) {
+        final Handler handler = new Handler(looper);
+        return new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    private static <T> Future<T> submitAsyncCall(Executor executor, Callable<T> callable,
+            @Nullable Executor callbackExecutor, @Nullable Callback<T> callback,
+            @Nullable T failedResult) {
+        AsyncCall<T> call = new AsyncCall<>(callable, callbackExecutor, callback, failedResult);
+        executor.execute(call);
+        return call;
+    }
+
+    private synchronized ThreadPoolExecutor getAsyncExecutor() {
+        if (mAsyncExecutor == null) {
+            // Few threads shared by all async lookups, they will quit when idle
+            mAsyncExecutor = newAsyncExecutor(ASYNC_THREADS, "ssp-async-");
+        }
+        return mAsyncExecutor;
+    }
+
+    /**
+     * The daemon start may take seconds, keep it away from the async lookups.
+     */
+    private synchronized ThreadPoolExecutor getDaemonAsyncExecutor() {
+        if (mDaemonAsyncExecutor == null) {
+            // the daemon start/stop is serialized anyway
+            mDaemonAsyncExecutor = newAsyncExecutor(1, "ssp-daemon-async-");
+        }
+        return mDaemonAsyncExecutor;
+    }
+
+    private static ThreadPoolExecutor newAsyncExecutor(int threads,
+            final String threadNamePrefix) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                ASYNC_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(@NonNull Runnable r) {
+                        Thread thread = new Thread(r, threadNamePrefix + mCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     public boolean isDaemonAlive() {
@@ -63,6 +216,11 @@ public class SysServiceProxy {
     boolean checkDaemonAlive(int ownerUid, int sspVersion, boolean stopBadDaemon) {
         if (DEBUG) LibLogger.d(TAG, "check daemon alive...");
         IBinder sspBinder = ServiceManagerIA.getService(mSspName);
+        ISysServiceProxy cachedService = mSspService;
+        if (cachedService != null && cachedService.asBinder() != sspBinder) {
+            // the daemon was replaced
+            invalidateSspService();
+        }
         if (sspBinder != null) {
             if (DEBUG) LibLogger.d(TAG, "service already added");
             ISysServiceProxy sspService = SysServiceProxyNative.asInterface(sspBinder);
@@ -82,64 +240,634 @@ public class SysServiceProxy {
                 }
             }
             if (stopBadDaemon) {
-                doStopDaemon(ownerUid);
+                if (curSspVersion > 0 && sspBinder.isBinderAlive() && canHandOff()) {
+                    // the new daemon will take over from the old one, no downtime
+                    if (DEBUG) LibLogger.d(TAG, "hand off from daemon v" + curSspVersion);
+                } else {
+                    doStopDaemon(ownerUid);
+                }
             }
         }
         return false;
     }
 
+    private static boolean canHandOff() {
+        // binder replace may fail on Android 2.3
+        return Build.VERSION.SDK_INT > Build.VERSION_CODES.GINGERBREAD_MR1;
+    }
+
+    private static boolean canShareDaemon() {
+        // the tenants are published by replacing the existing binders,
+        // and the shared daemon checks their packages by stat(), since Android 5.0
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Set limits of the service cache in the daemon. Take effect when the daemon is started next time.
+     * @param maxSize Max count of the cached services. Zero means the default value.
+     * @param idleTimeoutMillis Cached services not used in this time will be removed.
+     *                          Zero means the default value.
+     */
+    public void setDaemonCacheLimits(int maxSize, long idleTimeoutMillis) {
+        mDaemonCacheMaxSize = maxSize;
+        mDaemonCacheIdleTimeout = idleTimeoutMillis;
+    }
+
+    /**
+     * Set how long the missing services will be remembered, both in the daemon and
+     * in this process. Only the misses of {@link #getService(String)}, which waits for
+     * the service to be published, are remembered. A remembered missing service will be
+     * forgotten when it's added through the daemon. Disabled by default.
+     * The daemon part takes effect when the daemon is started next time.
+     * @param ttlMillis Zero means disabling it.
+     */
+    public void setMissingServiceTtl(long ttlMillis) {
+        mMissingServiceTtl = ttlMillis;
+        mMissingServices.setTtl(ttlMillis);
+    }
+
+    /**
+     * Set how long the misses of {@link #checkService(String)} will be remembered,
+     * both in the daemon and in this process, so that probing an optional service
+     * repeatedly doesn't query the service manager each time. The blocking lookups
+     * are not affected. One second by default.
+     * The daemon part takes effect when the daemon is started next time.
+     * @param ttlMillis Zero means disabling it.
+     */
+    public void setCheckMissTtl(long ttlMillis) {
+        mCheckMissTtl = ttlMillis;
+        mCheckMisses.setTtl(ttlMillis);
+    }
+
+    /**
+     * Configure the logs of the daemon. Take effect when the daemon is started next time.
+     * The logs in the ring buffer can be got by "dumpsys ssproxy_<i>xxxxxx</i>".
+     * @param level One of {@link android.util.Log#VERBOSE}, {@link android.util.Log#DEBUG}
+     *              and so on.
+     * @param ringBufferCapacity Count of the log records kept in memory. Zero disables it.
+     * @param logcatEnabled If the logs should be written into logcat.
+     */
+    public void setDaemonLogConfig(int level, int ringBufferCapacity, boolean logcatEnabled) {
+        mDaemonLogLevel = level;
+        mDaemonLogBufferCapacity = ringBufferCapacity;
+        mDaemonLogcatEnabled = logcatEnabled;
+    }
+
+    /**
+     * Share one daemon process with the other apps embedding this library, instead of
+     * running a daemon for each app. Each app still has its own ssproxy service, which only
+     * serves its own uid. Take effect when the daemon is started next time.
+     * <p>The cache and log options are decided by the app which starts the shared daemon.
+     * A dedicated daemon will be used if the shared one is older than this library,
+     * or before Android 5.0.</p>
+     */
+    public void setUseSharedDaemon(boolean enabled) {
+        mUseSharedDaemon = enabled;
+    }
+
+    /**
+     * Let the daemon record which services are requested by this app (in a small file in
+     * the files dir), and prefetch the most used ones in background when it's started.
+     * Enabled by default, only works on Android 5.0 and later.
+     * Take effect when the daemon is started next time.
+     */
+    public void setDaemonPrefetchEnabled(boolean enabled) {
+        mDaemonPrefetchEnabled = enabled;
+    }
+
+    /**
+     * Keep a long-lived root shell and reuse it to start/stop the daemon,
+     * instead of spawning a new su process each time.
+     * When disabled, the opened root shell will be closed.
+     */
+    public void setUsePersistentShell(boolean enabled) {
+        RootShell oldShell;
+        synchronized (this) {
+            oldShell = mRootShell;
+            if (enabled) {
+                if (oldShell == null) {
+                    mRootShell = new RootShell(SELINUX_CONTEXT);
+                }
+                return;
+            }
+            mRootShell = null;
+        }
+        if (oldShell != null) {
+            oldShell.close();
+        }
+    }
+
+    /**
+     * Let the daemon quit as soon as this process died. By default, the daemon keeps
+     * running after this process died, so that it can be reused without root permission
+     * next time. Disabling it takes effect when the daemon is started next time.
+     */
+    public void setDaemonExitWithOwner(boolean enabled) {
+        mDaemonExitWithOwner = enabled;
+        ISysServiceProxy sspService = mSspService;
+        if (enabled && sspService != null) {
+            attachOwnerToken(sspService);
+        }
+    }
+
+    /**
+     * Restart the daemon in background automatically when it died, for example,
+     * killed by the OOM killer. {@link #stopDaemon()} will disable it.
+     * @param useStandby Keep a standby daemon (one more process),
+     *                   which takes over as soon as the daemon died.
+     */
+    public void setSupervised(boolean enabled, boolean useStandby) {
+        DaemonSupervisor oldSupervisor;
+        synchronized (this) {
+            oldSupervisor = mSupervisor;
+            mSupervisor = null;
+            if (enabled) {
+                mSupervisor = new DaemonSupervisor(this, mSspName, useStandby);
+                mSupervisor.start();
+            }
+        }
+        if (oldSupervisor != null) {
+            oldSupervisor.stop();
+        }
+    }
+
+    public void addDaemonReadyListener(OnDaemonReadyListener listener) {
+        mReadyListeners.addIfAbsent(listener);
+    }
+
+    public void removeDaemonReadyListener(OnDaemonReadyListener listener) {
+        mReadyListeners.remove(listener);
+    }
+
+    /**
+     * Start the daemon if not running. If another thread is starting the daemon,
+     * wait for it and share its result, unless {@link #stopDaemon()} was invoked
+     * after that start began: then the daemon is started again after the stop.
+     * Note that the concurrent start and stop calls are not ordered otherwise.
+     */
     public boolean startDaemon() {
-        return doStartDaemon(mUid, ISysServiceProxy.SSP_VERSION);
+        return startDaemonWithReport().isSuccessful();
+    }
+
+    /**
+     * The same as {@link #startDaemon()}, but returns the timeline of the startup,
+     * so that we can see where the time goes. The report is kept for {@link #dump(PrintWriter)}.
+     */
+    @NonNull
+    public StartupReport startDaemonWithReport() {
+        checkNotUiThread();
+        // don't share the result of an in-flight stop, the daemon must be running after this
+        mStopFlight.detach();
+        return mStartFlight.run(new Callable<StartupReport>() {
+            @Override
+            public StartupReport call() throws Exception {
+                return doStartDaemonWithReport(mUid, ISysServiceProxy.SSP_VERSION);
+            }
+        }, new StartupReport());
+    }
+
+    /**
+     * @return null if the daemon was never started by this process
+     */
+    @Nullable
+    public StartupReport getLastStartupReport() {
+        return mLastStartupReport;
     }
 
     @VisibleForTesting
     boolean doStartDaemon(int ownerUid, int sspVersion) {
-        if (DEBUG) LibLogger.d(TAG, "start daemon...");
-        if (Looper.myLooper() == Looper.getMainLooper()) {
-            throw new RuntimeException("Cannot be invoked in UI thread");
+        return doStartDaemonWithReport(ownerUid, sspVersion).isSuccessful();
+    }
+
+    private StartupReport doStartDaemonWithReport(int ownerUid, int sspVersion) {
+        checkNotUiThread();
+        synchronized (mDaemonOpLock) {
+            return doStartDaemonLocked(ownerUid, sspVersion);
         }
+    }
 
+    private StartupReport doStartDaemonLocked(int ownerUid, int sspVersion) {
+        if (DEBUG) LibLogger.d(TAG, "start daemon...");
+        StartupReport report = new StartupReport();
+        report.addPhase(StartupReport.PHASE_START);
         // stop the daemon if bad daemon exist
         // (binder replace may fail on some devices (such as Android 2.3))
         if (checkDaemonAlive(ownerUid, sspVersion, true)) {
-            return true;
+            report.setAlreadyRunning(true);
+            report.setSuccessful(true);
+        } else {
+            boolean ready = launchDaemon(ownerUid, sspVersion, false, report);
+            invalidateSspService();
+            if (DEBUG) LibLogger.d(TAG, "start daemon done, ready: " + ready);
+            // The ready file may be unavailable on some devices, check the daemon then
+            // (the ready token timed out already). Not just the service name,
+            // the old daemon is still registered if the new one failed to take over.
+            report.setSuccessful(ready || checkDaemonAlive(ownerUid, sspVersion, false));
+        }
+        report.addPhase(StartupReport.PHASE_DONE);
+        if (DEBUG) LibLogger.d(TAG, "startup report: " + report);
+        mLastStartupReport = report;
+        return report;
+    }
+
+    /**
+     * Launch a standby daemon, which takes over as soon as the current daemon died.
+     * @return true if the standby daemon is ready
+     */
+    boolean startStandbyDaemon() {
+        if (DEBUG) LibLogger.d(TAG, "start standby daemon...");
+        synchronized (mDaemonOpLock) {
+            return launchDaemon(mUid, ISysServiceProxy.SSP_VERSION, true, null);
         }
+    }
 
-        String[] cmds = RootPermUtils.getRootJarCommand(mAppContext,
-                SysServiceProxyDaemon.CMD_START, String.valueOf(ownerUid), mPkgName,
-                String.valueOf(sspVersion));
-        RootPermUtils.runSuCommand(cmds, "u:object_r:default_android_service:s0");
-        if (DEBUG) LibLogger.d(TAG, "start daemon done");
-        return ServiceManagerIA.getService(mSspName) != null;
+    /**
+     * Ask the current daemon to dismiss its standby daemon, if any.
+     */
+    void dismissStandbyDaemon() {
+        if (DEBUG) LibLogger.d(TAG, "dismiss standby daemon...");
+        IBinder sspBinder = ServiceManagerIA.checkService(mSspName);
+        ISysServiceProxy sspService = sspBinder != null
+                ? SysServiceProxyNative.asInterface(sspBinder) : null;
+        if (sspService != null) {
+            sspService.dismissStandby();
+        }
     }
 
+    /**
+     * Launch the daemon and wait for its ready token.
+     * @param report If not null, the startup phases will be recorded into it
+     */
+    private boolean launchDaemon(int ownerUid, int sspVersion, boolean standby,
+            @Nullable StartupReport report) {
+        ArrayList<String> params = new ArrayList<>();
+        params.add(String.valueOf(ownerUid));
+        params.add(mPkgName);
+        params.add(String.valueOf(sspVersion));
+        if (mDaemonCacheMaxSize > 0) {
+            params.add(SysServiceProxyDaemon.OPT_CACHE_MAX_SIZE + "=" + mDaemonCacheMaxSize);
+        }
+        if (mDaemonCacheIdleTimeout > 0) {
+            params.add(SysServiceProxyDaemon.OPT_CACHE_IDLE_TIMEOUT + "=" + mDaemonCacheIdleTimeout);
+        }
+        if (mMissingServiceTtl >= 0) {
+            params.add(SysServiceProxyDaemon.OPT_MISSING_SERVICE_TTL + "=" + mMissingServiceTtl);
+        }
+        if (mCheckMissTtl >= 0) {
+            params.add(SysServiceProxyDaemon.OPT_CHECK_MISS_TTL + "=" + mCheckMissTtl);
+        }
+        if (mDaemonLogLevel >= 0) {
+            params.add(SysServiceProxyDaemon.OPT_LOG_LEVEL + "=" + mDaemonLogLevel);
+        }
+        if (mDaemonLogBufferCapacity > 0) {
+            params.add(SysServiceProxyDaemon.OPT_LOG_BUFFER + "=" + mDaemonLogBufferCapacity);
+        }
+        if (!mDaemonLogcatEnabled) {
+            params.add(SysServiceProxyDaemon.OPT_LOG_LOGCAT + "=0");
+        }
+        if (mDaemonPrefetchEnabled) {
+            File profileFile = new File(mAppContext.getFilesDir(), USAGE_PROFILE_FILE_NAME);
+            params.add(SysServiceProxyDaemon.OPT_USAGE_PROFILE + "="
+                    + profileFile.getAbsolutePath());
+        }
+        if (standby) {
+            params.add(SysServiceProxyDaemon.OPT_STANDBY + "=1");
+        } else if (mUseSharedDaemon && canShareDaemon()) {
+            params.add(SysServiceProxyDaemon.OPT_SHARED + "=1");
+        }
+
+        deleteStaleReadyFiles();
+        // the daemon will write a ready token to its stdout once the service is published,
+        // or the standby daemon is registered. Unique for each launch, so that the concurrent
+        // launches in different processes cannot read the token of each other.
+        final File readyFile = new File(mAppContext.getCacheDir(),
+                (standby ? STANDBY_READY_FILE_PREFIX : READY_FILE_PREFIX)
+                        + android.os.Process.myPid() + "_" + mLaunchCount.incrementAndGet());
+        final DaemonReadyWaiter waiter = new DaemonReadyWaiter(readyFile,
+                standby ? null : mReadyDispatcher);
+        waiter.prepare();
+        boolean daemonJarUsed = DaemonJar.isEnabled();
+        if (report != null) {
+            // probe it in advance (cached), so that it can be told apart from the su grant
+            RootPermUtils.getSuShell(SELINUX_CONTEXT);
+            report.addPhase(StartupReport.PHASE_SELINUX_PROBED);
+            report.setDaemonJarUsed(daemonJarUsed);
+        }
+        runLaunchCommand(waiter, readyFile, params.toArray(new String[params.size()]), report);
+        boolean ready = waiter.await(DAEMON_READY_TIMEOUT);
+        if (!ready && waiter.isLoadFailed() && daemonJarUsed) {
+            // the daemon jar may not work on this device, try the app apk
+            DaemonJar.disable();
+            return launchDaemon(ownerUid, sspVersion, standby, report);
+        }
+        if (ready && report != null) {
+            report.addPhase(StartupReport.PHASE_READY, waiter.getReadyTime());
+            report.setDaemonPid(waiter.getPid());
+            for (Map.Entry<String, Long> phase : waiter.getDaemonPhases().entrySet()) {
+                report.addPhase(StartupReport.DAEMON_PHASE_PREFIX + phase.getKey(),
+                        phase.getValue());
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * The daemon may write the ready file after the waiter timed out and deleted it.
+     */
+    private void deleteStaleReadyFiles() {
+        File[] files = mAppContext.getCacheDir().listFiles();
+        if (files == null) {
+            return;
+        }
+        long staleTime = System.currentTimeMillis() - STALE_READY_FILE_AGE;
+        for (File file : files) {
+            String name = file.getName();
+            if ((name.startsWith(READY_FILE_PREFIX) || name.startsWith(STANDBY_READY_FILE_PREFIX))
+                    && file.lastModified() < staleTime && !file.delete()) {
+                if (DEBUG) LibLogger.d(TAG, "failed to delete the stale ready file: " + name);
+            }
+        }
+    }
+
+    /**
+     * Run the start command in a new thread, and cancel the waiter if it failed.
+     * The su shell returns only after the daemon released it, which is later than
+     * the ready token, so don't wait for it.
+     */
+    private void runLaunchCommand(final DaemonReadyWaiter waiter, final File readyFile,
+            final String[] params, @Nullable final StartupReport report) {
+        Thread launcher = new Thread("ssp-launcher") {
+            @Override
+            public void run() {
+                // only the failure is meaningful, the daemon may run in background
+                if (!runDaemonCommand(SysServiceProxyDaemon.CMD_START,
+                        readyFile.getAbsolutePath(), params)) {
+                    if (DEBUG) LibLogger.w(TAG, "failed to launch the daemon");
+                    waiter.cancel();
+                } else {
+                    waiter.onCommandSucceeded();
+                    if (report != null) {
+                        report.addPhase(StartupReport.PHASE_COMMAND_DONE);
+                    }
+                }
+            }
+        };
+        launcher.setDaemon(true);
+        launcher.start();
+    }
+
+    /**
+     * The async version of {@link #startDaemon()}, can be invoked in UI thread.
+     * @param callbackExecutor Where to invoke the callback. If null, the callback
+     *                         will be invoked in a background thread.
+     *                         See {@link #getLooperExecutor(Looper)}.
+     */
+    public Future<Boolean> startDaemonAsync(@Nullable Executor callbackExecutor,
+            @Nullable Callback<Boolean> callback) {
+        return submitAsyncCall(getDaemonAsyncExecutor(), new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return startDaemon();
+            }
+        }, callbackExecutor, callback, false);
+    }
+
+    /**
+     * Stop the daemon. If another thread is stopping the daemon,
+     * wait for it and share its result.
+     */
     public boolean stopDaemon() {
-        return doStopDaemon(mUid);
+        checkNotUiThread();
+        setSupervised(false, false);
+        // don't let the later starts join an in-flight start, which will be stopped soon
+        mStartFlight.detach();
+        return mStopFlight.run(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return doStopDaemon(mUid);
+            }
+        }, false);
     }
 
     @VisibleForTesting
     boolean doStopDaemon(int ownerUid) {
-        if (DEBUG) LibLogger.d(TAG, "stop daemon...");
-        if (Looper.myLooper() == Looper.getMainLooper()) {
-            throw new RuntimeException("Cannot be invoked in UI thread");
+        checkNotUiThread();
+        synchronized (mDaemonOpLock) {
+            return doStopDaemonLocked(ownerUid);
         }
+    }
 
-        IBinder sspBinder = ServiceManagerIA.getService(mSspName);
-        if (sspBinder == null) {
+    private boolean doStopDaemonLocked(int ownerUid) {
+        if (DEBUG) LibLogger.d(TAG, "stop daemon...");
+        IBinder sspBinder = ServiceManagerIA.checkService(mSspName);
+        if (sspBinder == null || !sspBinder.isBinderAlive()) {
             if (DEBUG) LibLogger.d(TAG, "service is not running");
             return true;
         }
 
-        String[] cmds = RootPermUtils.getRootJarCommand(mAppContext,
-                SysServiceProxyDaemon.CMD_STOP, String.valueOf(ownerUid), mPkgName);
-        RootPermUtils.runSuCommand(cmds, "u:object_r:default_android_service:s0");
+        // ask the daemon to quit by itself, no root process needed
+        if (shutdownDaemon(sspBinder)) {
+            invalidateSspService();
+            if (DEBUG) LibLogger.d(TAG, "daemon shut down");
+            return true;
+        }
+
+        runDaemonCommand(SysServiceProxyDaemon.CMD_STOP, null,
+                String.valueOf(ownerUid), mPkgName);
+        invalidateSspService();
         if (DEBUG) LibLogger.d(TAG, "stop daemon done");
-        return ServiceManagerIA.getService(mSspName) == null;
+        return ServiceManagerIA.checkService(mSspName) == null || !sspBinder.isBinderAlive();
     }
 
-    public int getSspVersion() {
-        IBinder sspBinder = ServiceManagerIA.getService(mSspName);
+    private static void checkNotUiThread() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new RuntimeException("Cannot be invoked in UI thread");
+        }
+    }
+
+    /**
+     * Send the shutdown transaction to the daemon and wait for its death.
+     * @return false if not supported or the daemon didn't quit in time
+     */
+    private boolean shutdownDaemon(IBinder sspBinder) {
         ISysServiceProxy sspService = SysServiceProxyNative.asInterface(sspBinder);
+        if (sspService == null) { // should never happen
+            return false;
+        }
+
+        final CountDownLatch deathLatch = new CountDownLatch(1);
+        IBinder.DeathRecipient recipient = new IBinder.DeathRecipient() {
+            @Override
+            public void binderDied() {
+                deathLatch.countDown();
+            }
+        };
+        try {
+            sspBinder.linkToDeath(recipient, 0);
+        } catch (RemoteException e) {
+            return true; // died already
+        }
+
+        try {
+            int result = sspService.shutdown(SysServiceProxyNative.DEFAULT_DRAIN_TIMEOUT);
+            if (result == ISysServiceProxy.SHUTDOWN_DETACHED) {
+                // the shared daemon keeps running for the other tenants
+                return true;
+            } else if (result != ISysServiceProxy.SHUTDOWN_EXITING) {
+                return false;
+            }
+            return deathLatch.await(SysServiceProxyNative.DEFAULT_DRAIN_TIMEOUT
+                    + SHUTDOWN_EXTRA_WAIT_TIME, TimeUnit.MILLISECONDS);
+        } catch (SecurityException e) {
+            // not the owner or old daemon
+            if (DEBUG) LibLogger.d(TAG, "failed to shut down the daemon: " + e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            sspBinder.unlinkToDeath(recipient, 0);
+        }
+    }
+
+    /**
+     * @param stdoutFile If not null, the stdout of the daemon will be redirected to this file.
+     * @return false if failed to run the command
+     */
+    private boolean runDaemonCommand(String cmd, @Nullable String stdoutFile,
+            String... cmdParams) {
+        RootShell rootShell = mRootShell;
+        if (rootShell != null) {
+            // the daemon runs in background, or the shell will be blocked
+            boolean detached = SysServiceProxyDaemon.CMD_START.equals(cmd);
+            String[] cmds = RootPermUtils.getRootJarCommand(mAppContext, detached, stdoutFile,
+                    cmd, cmdParams);
+            if (rootShell.run(cmds)) {
+                return true;
+            }
+            if (DEBUG) LibLogger.w(TAG, "failed to run in the root shell, try su again");
+        }
+        String[] cmds = RootPermUtils.getRootJarCommand(mAppContext, false, stdoutFile,
+                cmd, cmdParams);
+        return RootPermUtils.runSuCommand(cmds, SELINUX_CONTEXT);
+    }
+
+
+    /**
+     * Get the cached ssproxy interface, or resolve it from the service manager if needed.
+     * The cache will be dropped when the daemon binder died.
+     */
+    @Nullable
+    private ISysServiceProxy getSspService() {
+        ISysServiceProxy sspService = mSspService;
+        if (sspService != null) {
+            return sspService;
+        }
+
+        synchronized (mSspLock) {
+            if (mSspService == null) {
+                IBinder sspBinder = ServiceManagerIA.getService(mSspName);
+                if (sspBinder == null) {
+                    return null;
+                }
+                SspDeathRecipient recipient = new SspDeathRecipient(sspBinder);
+                try {
+                    sspBinder.linkToDeath(recipient, 0);
+                } catch (RemoteException e) {
+                    if (DEBUG) LibLogger.d(TAG, "ssp died already: " + e);
+                    return null;
+                }
+                mSspDeathRecipient = recipient;
+                mSspService = SysServiceProxyNative.asInterface(sspBinder);
+                if (mDaemonExitWithOwner) {
+                    attachOwnerToken(mSspService);
+                }
+            }
+            return mSspService;
+        }
+    }
+
+    /**
+     * Get the new daemon if the old one died or was replaced by a newer one.
+     * Only looked up again if the old one died, was invalidated, or told us it's closed
+     * in the last lookup reply, so that the misses don't cost another transaction.
+     * @return null if the old one is still serving or no daemon running
+     */
+    @Nullable
+    private ISysServiceProxy getNewSspService(ISysServiceProxy oldService) {
+        if (oldService.asBinder().isBinderAlive() && !oldService.isClosed()
+                && mSspService == oldService) {
+            return null;
+        }
+        synchronized (mSspLock) {
+            if (mSspService == oldService) {
+                invalidateSspService();
+            }
+        }
+        ISysServiceProxy newService = getSspService();
+        return newService != oldService ? newService : null;
+    }
+
+    private void attachOwnerToken(ISysServiceProxy sspService) {
+        try {
+            sspService.attachOwner(mOwnerToken);
+        } catch (SecurityException e) {
+            // old daemon found
+            if (DEBUG) LibLogger.d(TAG, "failed to attach owner token: " + e);
+        }
+    }
+
+    private void invalidateSspService() {
+        synchronized (mSspLock) {
+            if (mSspDeathRecipient != null) {
+                mSspDeathRecipient.mBinder.unlinkToDeath(mSspDeathRecipient, 0);
+                mSspDeathRecipient = null;
+            }
+            mSspService = null;
+        }
+        mMissingServices.clear();
+        mCheckMisses.clear();
+    }
+
+    private class SspDeathRecipient implements IBinder.DeathRecipient {
+        private IBinder mBinder;
+
+        SspDeathRecipient(IBinder binder) {
+            mBinder = binder;
+        }
+
+        @Override
+        public void binderDied() {
+            if (DEBUG) LibLogger.d(TAG, "ssp binder died: " + mBinder);
+            synchronized (mSspLock) {
+                if (mSspDeathRecipient == this) {
+                    mSspDeathRecipient = null;
+                    mSspService = null;
+                }
+            }
+            // remembered by the died daemon
+            mMissingServices.clear();
+            mCheckMisses.clear();
+        }
+    }
+
+    public void dump(PrintWriter fout) {
+        fout.println("SysServiceProxy: " + mSspName);
+        ISysServiceProxy sspService = mSspService;
+        fout.println("Daemon: " + (sspService != null ? sspService.asBinder() : "not connected"));
+        synchronized (this) {
+            fout.println("Supervised: " + (mSupervisor != null && mSupervisor.isRunning()));
+        }
+        StartupReport report = mLastStartupReport;
+        if (report != null) {
+            report.dump(fout);
+        } else {
+            fout.println("Startup: none");
+        }
+    }
+
+    public int getSspVersion() {
+        ISysServiceProxy sspService = getSspService();
         if (sspService != null) {
             return sspService.getSspVersion();
         }
@@ -148,20 +876,159 @@ public class SysServiceProxy {
 
     @Nullable
     public IBinder checkService(@NonNull String name) {
-        IBinder sspBinder = ServiceManagerIA.getService(mSspName);
-        ISysServiceProxy sspService = SysServiceProxyNative.asInterface(sspBinder);
+        if (mMissingServices.isMissing(name) || mCheckMisses.isMissing(name)) {
+            return null;
+        }
+        ISysServiceProxy sspService = getSspService();
         if (sspService != null) {
-            return sspService.checkService(name);
+            IBinder service = sspService.checkService(name);
+            if (service == null) {
+                sspService = getNewSspService(sspService);
+                if (sspService != null) {
+                    service = sspService.checkService(name);
+                }
+            }
+            if (service == null) {
+                // the service may be published in a moment, only remembered shortly
+                mCheckMisses.markMissing(name);
+            }
+            return service;
         }
         return null;
     }
 
     @Nullable
     public IBinder getService(@NonNull String name) {
-        IBinder sspBinder = ServiceManagerIA.getService(mSspName);
-        ISysServiceProxy sspService = SysServiceProxyNative.asInterface(sspBinder);
+        if (mMissingServices.isMissing(name)) {
+            return null;
+        }
+        ISysServiceProxy sspService = getSspService();
         if (sspService != null) {
-            return sspService.getService(name);
+            IBinder service = sspService.getService(name);
+            if (service == null) {
+                sspService = getNewSspService(sspService);
+                if (sspService != null) {
+                    service = sspService.getService(name);
+                }
+            }
+            if (service == null) {
+                mMissingServices.markMissing(name);
+            }
+            return service;
+        }
+        return null;
+    }
+
+    /**
+     * Send a transaction to the service directly, for the hot callers which write
+     * the parcels by themselves, no reflection per call.
+     * See {@link StubResolver} for the transaction codes and the interface descriptors.
+     * @return false if the service is unavailable, or the transaction code is unknown
+     * @throws RemoteException if the service died
+     */
+    public boolean transact(@NonNull String serviceName, int code, @NonNull Parcel data,
+            @Nullable Parcel reply, int flags) throws RemoteException {
+        IBinder service = getService(serviceName);
+        if (service == null) {
+            if (DEBUG) LibLogger.w(TAG, "service unavailable: " + serviceName);
+            return false;
+        }
+        return service.transact(code, data, reply, flags);
+    }
+
+    /**
+     * The async version of {@link #checkService(String)}.
+     * @param callbackExecutor Where to invoke the callback. If null, the callback
+     *                         will be invoked in a background thread.
+     */
+    public Future<IBinder> checkServiceAsync(@NonNull final String name,
+            @Nullable Executor callbackExecutor, @Nullable Callback<IBinder> callback) {
+        return submitAsyncCall(getAsyncExecutor(), new Callable<IBinder>() {
+            @Override
+            public IBinder call() throws Exception {
+                return checkService(name);
+            }
+        }, callbackExecutor, callback, null);
+    }
+
+    /**
+     * The async version of {@link #getService(String)}.
+     * @param callbackExecutor Where to invoke the callback. If null, the callback
+     *                         will be invoked in a background thread.
+     */
+    public Future<IBinder> getServiceAsync(@NonNull final String name,
+            @Nullable Executor callbackExecutor, @Nullable Callback<IBinder> callback) {
+        return submitAsyncCall(getAsyncExecutor(), new Callable<IBinder>() {
+            @Override
+            public IBinder call() throws Exception {
+                return getService(name);
+            }
+        }, callbackExecutor, callback, null);
+    }
+
+    /**
+     * The same as {@link #getService(String)}, but waits at most {@code timeoutMillis}
+     * milliseconds for the daemon to look up the service.
+     */
+    @Nullable
+    public IBinder getService(@NonNull String name, long timeoutMillis) {
+        if (mMissingServices.isMissing(name)) {
+            return null;
+        }
+        // a null result may be caused by the timeout, so it's not remembered
+        ISysServiceProxy sspService = getSspService();
+        if (sspService != null) {
+            IBinder service = sspService.getService(name, timeoutMillis);
+            if (service == null) {
+                sspService = getNewSspService(sspService);
+                if (sspService != null) {
+                    service = sspService.getService(name, timeoutMillis);
+                }
+            }
+            return service;
+        }
+        return null;
+    }
+
+    /**
+     * Retrieve several services in one call to the daemon.
+     * @return null if the daemon is not running; otherwise an array with the same length as
+     *         {@code names}, and the missing services are null.
+     */
+    @Nullable
+    public IBinder[] getServices(@NonNull String... names) {
+        ISysServiceProxy sspService = getSspService();
+        if (sspService != null) {
+            IBinder[] services = sspService.getServices(names);
+            if (hasNull(services)) {
+                sspService = getNewSspService(sspService);
+                if (sspService != null) {
+                    services = sspService.getServices(names);
+                }
+            }
+            return services;
+        }
+        return null;
+    }
+
+    private static boolean hasNull(IBinder[] binders) {
+        for (IBinder binder : binders) {
+            if (binder == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the transaction statistics of the daemon.
+     * @return null if the daemon is not running or doesn't support it
+     */
+    @Nullable
+    public SspStats getStats() {
+        ISysServiceProxy sspService = getSspService();
+        if (sspService != null) {
+            return sspService.getStats();
         }
         return null;
     }
@@ -169,10 +1036,11 @@ public class SysServiceProxy {
     // hidden
     @SuppressWarnings("unused")
     void addService(@NonNull String name, @NonNull IBinder service) {
-        IBinder sspBinder = ServiceManagerIA.getService(mSspName);
-        ISysServiceProxy sspService = SysServiceProxyNative.asInterface(sspBinder);
+        ISysServiceProxy sspService = getSspService();
         if (sspService != null) {
             sspService.addService(name, service);
+            mMissingServices.remove(name);
+            mCheckMisses.remove(name);
         }
     }
 
@@ -180,11 +1048,22 @@ public class SysServiceProxy {
     @SuppressWarnings("unused")
     String[] listServices() {
         // The service names may be null on some devices
-        IBinder sspBinder = ServiceManagerIA.getService(mSspName);
-        ISysServiceProxy sspService = SysServiceProxyNative.asInterface(sspBinder);
+        ISysServiceProxy sspService = getSspService();
         if (sspService != null) {
             return sspService.listServices();
         }
         return null;
     }
+
+    // hidden
+    @SuppressWarnings("unused")
+    Future<String[]> listServicesAsync(@Nullable Executor callbackExecutor,
+            @Nullable Callback<String[]> callback) {
+        return submitAsyncCall(getAsyncExecutor(), new Callable<String[]>() {
+            @Override
+            public String[] call() throws Exception {
+                return listServices();
+            }
+        }, callbackExecutor, callback, null);
+    }
 }
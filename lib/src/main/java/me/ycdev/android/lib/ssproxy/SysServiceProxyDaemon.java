@@ -1,14 +1,29 @@
 package me.ycdev.android.lib.ssproxy;
 
+import android.annotation.TargetApi;
+import android.os.Build;
 import android.os.IBinder;
 import android.os.Process;
+import android.os.RemoteException;
 import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import me.ycdev.android.lib.common.internalapi.android.os.ProcessIA;
 import me.ycdev.android.lib.common.internalapi.android.os.ServiceManagerIA;
 import me.ycdev.android.lib.common.utils.StringUtils;
+import me.ycdev.android.lib.ssproxy.proxy.ISysServiceProxy;
+import me.ycdev.android.lib.ssproxy.proxy.MissingServiceCache;
 import me.ycdev.android.lib.ssproxy.proxy.SysServiceProxyNative;
 import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
 import me.ycdev.android.lib.ssproxy.utils.LibLogger;
@@ -17,16 +32,68 @@ class SysServiceProxyDaemon {
     private static final String TAG = "SysServiceProxyDaemon";
     private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
 
+    static final String SSP_NAME_PREFIX = "ssproxy_";
+    // service name and process name of the shared daemon
+    static final String SHARED_DAEMON_NAME = SSP_NAME_PREFIX + "shared";
+
     public static final String CMD_START = "cmd_start";
     public static final String CMD_STOP = "cmd_stop";
 
+    // options of CMD_START, in the form of "key=value"
+    public static final String OPT_CACHE_MAX_SIZE = "cache_max_size";
+    public static final String OPT_CACHE_IDLE_TIMEOUT = "cache_idle_timeout";
+    public static final String OPT_MISSING_SERVICE_TTL = "missing_service_ttl";
+    public static final String OPT_CHECK_MISS_TTL = "check_miss_ttl";
+    public static final String OPT_DETACHED = "detached";
+    public static final String OPT_TRACE_CAPACITY = "trace_capacity";
+    public static final String OPT_LOG_LEVEL = "log_level";
+    public static final String OPT_LOG_BUFFER = "log_buffer";
+    public static final String OPT_LOG_LOGCAT = "log_logcat";
+    public static final String OPT_STANDBY = "standby";
+    public static final String OPT_SHARED = "shared";
+    public static final String OPT_LOOKUP_QUOTA = "lookup_quota";
+    public static final String OPT_USAGE_PROFILE = "usage_profile"; // file path
+    public static final String OPT_PREFETCH_COUNT = "prefetch_count";
+
+    // written to stdout when the service is published: "SSP_READY pid=xxx version=xxx"
+    public static final String READY_TOKEN = "SSP_READY";
+    public static final String READY_PID = "pid=";
+    public static final String READY_VERSION = "version=";
+    // written to stdout instead if the daemon refused to run, so that the client
+    // can tell it apart from a daemon which failed to load: "SSP_REJECTED <reason>"
+    public static final String REJECTED_TOKEN = "SSP_REJECTED";
+    // startup phases in the ready token, "t_<phase>=<SystemClock#elapsedRealtime()>"
+    public static final String READY_PHASE_PREFIX = "t_";
+    public static final String PHASE_PROCESS_START = "process_start"; // approximate
+    public static final String PHASE_MAIN = "main";
+    public static final String PHASE_BINDER_CREATED = "binder_created";
+    public static final String PHASE_PUBLISHED = "published";
+    public static final String PHASE_STANDBY_REGISTERED = "standby_registered";
+
+    private static final LinkedHashMap<String, Long> sPhases = new LinkedHashMap<>();
+
+    private static final long WARM_UP_TIMEOUT = 1000; // 1 second
+    private static final int DEFAULT_PREFETCH_COUNT = 8;
+    private static final long CLOCK_TICKS_PER_SECOND = 100; // USER_HZ of Android kernels
+    private static final int PER_USER_RANGE = 100000; // see UserHandle
+
+    /**
+     * The daemon runs with a slim class path (see {@link DaemonJar}),
+     * so it must not depend on the other classes of this package.
+     */
+    static String getSspServiceName(String pkgName) {
+        return SSP_NAME_PREFIX + pkgName;
+    }
+
     public static void main(String[] args) {
+        recordPhase(PHASE_MAIN);
         if (DEBUG) LibLogger.d(TAG, "Received params: " + Arrays.toString(args));
 
         // Check if we have the necessary permission.
         int uid = android.os.Process.myUid();
         if (uid != 0 && uid != Process.SYSTEM_UID) {
             if (DEBUG) LibLogger.e(TAG, "No permission! uid = " + uid);
+            notifyRejected("uid=" + uid);
             return;
         }
 
@@ -35,66 +102,434 @@ class SysServiceProxyDaemon {
         String pkgName = args[2];
         if (CMD_START.equals(cmd)) {
             int sspVersion = StringUtils.parseInt(args[3], 0);
-            startDaemon(ownerUid, pkgName, sspVersion);
+            HashMap<String, String> options = parseOptions(args, 4);
+            applyLogOptions(options);
+            if (getIntOption(options, OPT_SHARED, 0) != 0
+                    && getIntOption(options, OPT_STANDBY, 0) == 0) {
+                startSharedDaemon(ownerUid, pkgName, sspVersion, options);
+            } else {
+                startDaemon(ownerUid, pkgName, sspVersion, options);
+            }
         } else if (CMD_STOP.equals(cmd)) {
             stopDaemon(ownerUid, pkgName);
         }
     }
 
-    private static void startDaemon(int ownerUid, String pkgName, int sspVersion) {
-        // Add the service into ServiceManager
-        SysServiceProxyNative sspBinder = new SysServiceProxyNative(ownerUid, sspVersion);
-        String serviceName = SysServiceProxy.getSspServiceName(pkgName);
+    private static HashMap<String, String> parseOptions(String[] args, int start) {
+        HashMap<String, String> options = new HashMap<>();
+        for (int i = start; i < args.length; i++) {
+            int index = args[i].indexOf('=');
+            if (index > 0) {
+                options.put(args[i].substring(0, index), args[i].substring(index + 1));
+            }
+        }
+        return options;
+    }
+
+    private static void applyLogOptions(HashMap<String, String> options) {
+        LibLogger.setLevel(getIntOption(options, OPT_LOG_LEVEL, LibLogger.getLevel()));
+        LibLogger.setRingBufferCapacity(getIntOption(options, OPT_LOG_BUFFER, 0));
+        LibLogger.setLogcatEnabled(getIntOption(options, OPT_LOG_LOGCAT, 1) != 0);
+    }
+
+    private static int getIntOption(HashMap<String, String> options, String key, int defValue) {
+        String value = options.get(key);
+        return value != null ? StringUtils.parseInt(value, defValue) : defValue;
+    }
+
+    private static long getLongOption(HashMap<String, String> options, String key, long defValue) {
+        String value = options.get(key);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                if (DEBUG) LibLogger.w(TAG, "bad option: " + key + "=" + value);
+            }
+        }
+        return defValue;
+    }
+
+    private static void startDaemon(int ownerUid, String pkgName, int sspVersion,
+            HashMap<String, String> options) {
+        final SysServiceProxyNative sspBinder = new SysServiceProxyNative(ownerUid, sspVersion,
+                getIntOption(options, OPT_CACHE_MAX_SIZE, 0),
+                getLongOption(options, OPT_CACHE_IDLE_TIMEOUT, 0),
+                getIntOption(options, OPT_TRACE_CAPACITY, 0));
+        sspBinder.setMissingServiceTtl(getLongOption(options, OPT_MISSING_SERVICE_TTL,
+                MissingServiceCache.DEFAULT_TTL));
+        sspBinder.setCheckMissTtl(getLongOption(options, OPT_CHECK_MISS_TTL,
+                MissingServiceCache.DEFAULT_CHECK_TTL));
+        recordPhase(PHASE_BINDER_CREATED);
+        final String serviceName = getSspServiceName(pkgName);
+
+        // The daemon quits once it becomes obsolete, no polling needed
+        final MainSignal signal = new MainSignal();
+        sspBinder.setLifecycleListener(new SysServiceProxyNative.LifecycleListener() {
+            @Override
+            public void onReplaced() {
+                IBinder checkBinder = ServiceManagerIA.checkService(serviceName);
+                if (checkBinder != sspBinder) {
+                    if (DEBUG) LibLogger.d(TAG, "replaced by: " + checkBinder);
+                    signal.post(MainSignal.QUIT);
+                }
+            }
+
+            @Override
+            public void onOwnerDied() {
+                if (DEBUG) LibLogger.d(TAG, "owner died");
+                signal.post(MainSignal.QUIT);
+            }
+
+            @Override
+            public void onShutdown() {
+                if (DEBUG) LibLogger.d(TAG, "shutdown requested");
+                signal.post(MainSignal.QUIT);
+            }
+        });
+        watchServiceManager(signal);
+
+        boolean standby = getIntOption(options, OPT_STANDBY, 0) != 0;
+        if (standby) {
+            // Wait until the current daemon died, then take over at once
+            ProcessIA.setArgV0(SSP_NAME_PREFIX + "standby-" + ownerUid);
+            if (!registerStandby(sspBinder, serviceName, signal)) {
+                notifyRejected("standby");
+                return;
+            }
+            recordPhase(PHASE_STANDBY_REGISTERED);
+            notifyReady(Process.myPid(), sspVersion);
+            releaseParentShell(options);
+            if (signal.await() == MainSignal.QUIT) {
+                if (DEBUG) LibLogger.d(TAG, "standby dismissed");
+                return;
+            }
+            if (DEBUG) LibLogger.d(TAG, "standby promoted");
+        }
+
+        // Loaded only by the serving daemon, the standby one shares the same file
+        // and would overwrite the counts of the current daemon.
+        String usageProfilePath = options.get(OPT_USAGE_PROFILE);
+        if (usageProfilePath != null) {
+            sspBinder.setUsageProfile(new File(usageProfilePath));
+        }
+
+        // Take over from the old daemon (if any): warm up the cache first,
+        // then replace it in the service manager and let it quit.
+        // The most used services are prefetched in background at the same time.
+        sspBinder.prefetch(getIntOption(options, OPT_PREFETCH_COUNT, DEFAULT_PREFETCH_COUNT));
+        IBinder oldBinder = ServiceManagerIA.checkService(serviceName);
+        warmUpFrom(sspBinder, oldBinder);
         ServiceManagerIA.addService(serviceName, sspBinder);
+        recordPhase(PHASE_PUBLISHED);
 
         if (DEBUG) LibLogger.d(TAG, "ssp is added");
+        if (!standby) {
+            notifyReady(Process.myPid(), sspVersion);
+        }
+        notifyReplaced(oldBinder);
 
         // Change the process name
-        ProcessIA.setArgV0(SysServiceProxy.SSP_NAME_PREFIX + ownerUid);
-        int ppid = ProcessIA.myPpid();
-        if (DEBUG) LibLogger.d(TAG, "daemon parent pid: " + ppid);
-        android.os.Process.killProcess(ppid);
+        ProcessIA.setArgV0(SSP_NAME_PREFIX + ownerUid);
+        if (!standby) {
+            releaseParentShell(options);
+        }
 
         // Keep the process running
-        while (true) {
-            if (DEBUG) {
-                SystemClock.sleep(10 * 1000); // 10 seconds
-            } else {
-                SystemClock.sleep(60 * 1000); // 1 minute
+        while (signal.await() != MainSignal.QUIT) {
+            // the primary daemon will not be promoted
+        }
+
+        // Let the in-flight transactions finish. Our service entry will be removed
+        // by the service manager when the process exits.
+        sspBinder.close();
+        sspBinder.dismissStandby();
+        sspBinder.drain();
+        sspBinder.saveUsageProfile();
+        if (DEBUG) LibLogger.w(TAG, "ssp service died: " + sspBinder);
+    }
+
+    /**
+     * Join the shared daemon as a new tenant, or become the shared daemon if not running.
+     * Fall back to a dedicated daemon if the shared daemon rejected us (too old).
+     */
+    private static void startSharedDaemon(int ownerUid, String pkgName, int sspVersion,
+            HashMap<String, String> options) {
+        IBinder hostBinder = ServiceManagerIA.checkService(SHARED_DAEMON_NAME);
+        if (hostBinder != null && hostBinder.isBinderAlive()) {
+            ISysServiceProxy hostService = SysServiceProxyNative.asInterface(hostBinder);
+            int hostPid = hostService != null
+                    ? hostService.addTenant(ownerUid, pkgName, sspVersion,
+                            options.get(OPT_USAGE_PROFILE)) : 0;
+            if (hostPid > 0) {
+                if (DEBUG) LibLogger.d(TAG, "joined the shared daemon: " + hostPid);
+                recordPhase(PHASE_PUBLISHED);
+                notifyReady(hostPid, sspVersion);
+                releaseParentShell(options);
+                return; // this launcher process quits
+            }
+            if (DEBUG) LibLogger.w(TAG, "rejected by the shared daemon, run a dedicated one");
+            startDaemon(ownerUid, pkgName, sspVersion, options);
+            return;
+        }
+
+        // the host serves root only, the tenants serve the apps
+        final SysServiceProxyNative hostNative = new SysServiceProxyNative(0,
+                ISysServiceProxy.SSP_VERSION,
+                getIntOption(options, OPT_CACHE_MAX_SIZE, 0),
+                getLongOption(options, OPT_CACHE_IDLE_TIMEOUT, 0),
+                getIntOption(options, OPT_TRACE_CAPACITY, 0));
+        hostNative.setMissingServiceTtl(getLongOption(options, OPT_MISSING_SERVICE_TTL,
+                MissingServiceCache.DEFAULT_TTL));
+        hostNative.setCheckMissTtl(getLongOption(options, OPT_CHECK_MISS_TTL,
+                MissingServiceCache.DEFAULT_CHECK_TTL));
+        recordPhase(PHASE_BINDER_CREATED);
+        final MainSignal signal = new MainSignal();
+        SharedHost host = new SharedHost(hostNative, signal,
+                getIntOption(options, OPT_LOOKUP_QUOTA,
+                        SysServiceProxyNative.DEFAULT_TENANT_LOOKUP_QUOTA),
+                getIntOption(options, OPT_PREFETCH_COUNT, DEFAULT_PREFETCH_COUNT));
+        hostNative.setTenantHandler(host);
+        hostNative.setLifecycleListener(new SysServiceProxyNative.LifecycleListener() {
+            @Override
+            public void onReplaced() {
+                // another shared daemon won the race
+                if (ServiceManagerIA.checkService(SHARED_DAEMON_NAME) != hostNative) {
+                    signal.post(MainSignal.QUIT);
+                }
+            }
+
+            @Override
+            public void onOwnerDied() {
+                // no owner token for the host
             }
 
-            if (DEBUG) LibLogger.d(TAG, "heart beat...");
-            IBinder checkBinder = ServiceManagerIA.checkService(serviceName);
-            if (checkBinder != sspBinder) {
-                if (DEBUG) LibLogger.d(TAG, "bad binder: " + checkBinder);
-                break; // quit
+            @Override
+            public void onShutdown() {
+                signal.post(MainSignal.QUIT);
             }
+        });
+        watchServiceManager(signal);
+
+        // another shared daemon may be published since the check above,
+        // tell it to quit if we replaced it, the same as the dedicated daemon
+        IBinder oldHostBinder = ServiceManagerIA.checkService(SHARED_DAEMON_NAME);
+        ServiceManagerIA.addService(SHARED_DAEMON_NAME, hostNative);
+        notifyReplaced(oldHostBinder);
+        if (host.onAddTenant(ownerUid, pkgName, sspVersion,
+                options.get(OPT_USAGE_PROFILE)) <= 0) {
+            notifyRejected("tenant");
+            return;
         }
+        recordPhase(PHASE_PUBLISHED);
+        notifyReady(Process.myPid(), sspVersion);
+        ProcessIA.setArgV0(SHARED_DAEMON_NAME);
+        releaseParentShell(options);
 
-        if (DEBUG) LibLogger.w(TAG, "ssp service died: " + sspBinder);
+        // Keep the process running until the last tenant is gone
+        while (signal.await() != MainSignal.QUIT) {
+            // the shared daemon will not be promoted
+        }
+        host.close();
+        hostNative.drain();
+        if (DEBUG) LibLogger.w(TAG, "shared daemon quits");
+    }
+
+    private static void releaseParentShell(HashMap<String, String> options) {
+        if (getIntOption(options, OPT_DETACHED, 0) == 0) {
+            // Kill the su shell which is waiting for us
+            int ppid = ProcessIA.myPpid();
+            if (DEBUG) LibLogger.d(TAG, "daemon parent pid: " + ppid);
+            android.os.Process.killProcess(ppid);
+        }
+    }
+
+    private static void recordPhase(String phase) {
+        sPhases.put(phase, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Get the start time of this process from /proc/self/stat, which is in clock ticks
+     * since boot. It's approximate, but enough to see how long the VM init takes.
+     * @return -1 if failed
+     */
+    private static long getProcessStartTime() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/stat"));
+            String stat = reader.readLine();
+            // skip "pid (comm)", the comm may contain spaces
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            long startTicks = Long.parseLong(fields[19]); // the 22nd field
+            return startTicks * 1000 / CLOCK_TICKS_PER_SECOND;
+        } catch (IOException | RuntimeException e) {
+            if (DEBUG) LibLogger.w(TAG, "failed to get the process start time: " + e);
+            return -1;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Register as the standby daemon of the current daemon, and watch its death.
+     * @return false if the current daemon doesn't support standby daemons
+     */
+    private static boolean registerStandby(SysServiceProxyNative sspBinder, String serviceName,
+            final MainSignal signal) {
+        IBinder primaryBinder = ServiceManagerIA.checkService(serviceName);
+        if (primaryBinder == null || !primaryBinder.isBinderAlive()) {
+            if (DEBUG) LibLogger.d(TAG, "no daemon running, take over now");
+            signal.post(MainSignal.PROMOTE);
+            return true;
+        }
+        ISysServiceProxy primaryService = SysServiceProxyNative.asInterface(primaryBinder);
+        if (primaryService == null || !primaryService.registerStandby(sspBinder)) {
+            if (DEBUG) LibLogger.w(TAG, "standby not supported");
+            return false;
+        }
+        try {
+            primaryBinder.linkToDeath(new IBinder.DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    if (DEBUG) LibLogger.d(TAG, "daemon died");
+                    signal.post(MainSignal.PROMOTE);
+                }
+            }, 0);
+        } catch (RemoteException e) {
+            signal.post(MainSignal.PROMOTE);
+        }
+        return true;
+    }
+
+    private static void warmUpFrom(SysServiceProxyNative sspBinder, IBinder oldBinder) {
+        if (oldBinder == null || !oldBinder.isBinderAlive()) {
+            return;
+        }
+        ISysServiceProxy oldService = SysServiceProxyNative.asInterface(oldBinder);
+        String[] names = oldService != null ? oldService.getCachedServiceNames() : null;
+        if (names != null && names.length > 0) {
+            if (DEBUG) LibLogger.d(TAG, "warm up: " + Arrays.toString(names));
+            sspBinder.warmUp(names, WARM_UP_TIMEOUT);
+        }
+    }
+
+    /**
+     * Tell the old daemon that it was replaced, so that it can quit at once.
+     */
+    private static void notifyReplaced(IBinder oldBinder) {
+        if (oldBinder == null) {
+            return;
+        }
+        ISysServiceProxy oldService = SysServiceProxyNative.asInterface(oldBinder);
+        if (oldService != null) { // should never false
+            oldService.notifyReplaced();
+        }
+    }
+
+    /**
+     * Our service entry is lost if the service manager restarted, so quit too.
+     */
+    private static void watchServiceManager(final MainSignal signal) {
+        IBinder serviceManager;
+        try {
+            Class<?> clazz = Class.forName("com.android.internal.os.BinderInternal");
+            serviceManager = (IBinder) clazz.getMethod("getContextObject").invoke(null);
+        } catch (Exception e) {
+            if (DEBUG) LibLogger.w(TAG, "failed to get service manager: " + e);
+            return;
+        }
+        if (serviceManager == null) {
+            return;
+        }
+        try {
+            serviceManager.linkToDeath(new IBinder.DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    if (DEBUG) LibLogger.d(TAG, "service manager died");
+                    signal.post(MainSignal.QUIT);
+                }
+            }, 0);
+        } catch (RemoteException e) {
+            signal.post(MainSignal.QUIT);
+        }
+    }
+
+    private static void notifyReady(int pid, int sspVersion) {
+        // The client redirects our stdout to the ready file and is waiting for the token.
+        // Close stdout then, so that the client can know if we failed before this point.
+        long processStartTime = getProcessStartTime();
+        if (processStartTime > 0) {
+            sPhases.put(PHASE_PROCESS_START, processStartTime);
+        }
+        StringBuilder token = new StringBuilder();
+        token.append(READY_TOKEN).append(' ').append(READY_PID).append(pid)
+                .append(' ').append(READY_VERSION).append(sspVersion);
+        for (Map.Entry<String, Long> phase : sPhases.entrySet()) {
+            token.append(' ').append(READY_PHASE_PREFIX).append(phase.getKey())
+                    .append('=').append(phase.getValue());
+        }
+        System.out.print(token.append('\n').toString());
+        System.out.flush();
+        System.out.close();
+    }
+
+    /**
+     * Check the owner of the package's data dir, no package manager needed.
+     * Not supported before Android 5.0, always false there.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean isPackageOwnedBy(String pkgName, int uid) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        if (pkgName == null || pkgName.isEmpty() || pkgName.indexOf('/') >= 0
+                || pkgName.startsWith(".")) {
+            return false;
+        }
+        String dataDir = "/data/user/" + (uid / PER_USER_RANGE) + "/" + pkgName;
+        try {
+            // never follow a symbolic link in the package name
+            return Os.lstat(dataDir).st_uid == uid;
+        } catch (ErrnoException e) {
+            if (DEBUG) LibLogger.d(TAG, "failed to stat " + dataDir + ": " + e);
+            return false;
+        }
+    }
+
+    private static void notifyRejected(String reason) {
+        System.out.print(REJECTED_TOKEN + " " + reason + "\n");
+        System.out.flush();
+        System.out.close();
     }
 
     private static void stopDaemon(int ownerUid, String pkgName) {
         // Check if the service is running
-        String serviceName = SysServiceProxy.getSspServiceName(pkgName);
-        if (ServiceManagerIA.checkService(serviceName) == null) {
+        String serviceName = getSspServiceName(pkgName);
+        IBinder oldBinder = ServiceManagerIA.checkService(serviceName);
+        if (oldBinder == null) {
             if (DEBUG) LibLogger.w(TAG, "SSP is not running!");
             return;
         }
 
         // Change the process name
-        ProcessIA.setArgV0(SysServiceProxy.SSP_NAME_PREFIX + "stop-" + ownerUid);
+        ProcessIA.setArgV0(SSP_NAME_PREFIX + "stop-" + ownerUid);
 
         // Replace the service to make the old one to die
         SysServiceProxyNative sspBinder = new SysServiceProxyNative(ownerUid, 0);
         ServiceManagerIA.addService(serviceName, sspBinder);
         if (DEBUG) LibLogger.d(TAG, "spp is replaced and should go to die");
+        notifyReplaced(oldBinder);
 
         IBinder checkBinder = ServiceManagerIA.checkService(serviceName);
         if (checkBinder != sspBinder) {
             if (DEBUG) LibLogger.w(TAG, "failed to replace the old binder");
             // Android 2.3?
-            int sspDaemonPid = ProcessIA.getProcessPid(SysServiceProxy.SSP_NAME_PREFIX + ownerUid);
+            int sspDaemonPid = ProcessIA.getProcessPid(SSP_NAME_PREFIX + ownerUid);
             if (DEBUG) LibLogger.d(TAG, "found daemon pid: " + sspDaemonPid);
             if (sspDaemonPid > 0) {
                 android.os.Process.killProcess(sspDaemonPid);
@@ -102,4 +537,155 @@ class SysServiceProxyDaemon {
         }
         // Let the process to die to make the service to die
     }
+
+    /**
+     * The tenants of the shared daemon. It quits when the last tenant is removed.
+     */
+    private static class SharedHost implements SysServiceProxyNative.TenantHandler {
+        private final SysServiceProxyNative mHostNative;
+        private final MainSignal mSignal;
+        private final int mLookupQuota;
+        private final int mPrefetchCount;
+        // service name -> tenant
+        private final HashMap<String, SysServiceProxyNative> mTenants = new HashMap<>();
+        private boolean mClosed;
+
+        SharedHost(SysServiceProxyNative hostNative, MainSignal signal, int lookupQuota,
+                int prefetchCount) {
+            mHostNative = hostNative;
+            mSignal = signal;
+            mLookupQuota = lookupQuota;
+            mPrefetchCount = prefetchCount;
+        }
+
+        @Override
+        public int onAddTenant(int ownerUid, String pkgName, int sspVersion,
+                String usageProfilePath) {
+            if (sspVersion > ISysServiceProxy.SSP_VERSION) {
+                if (DEBUG) LibLogger.d(TAG, "tenant too new: " + sspVersion);
+                return 0;
+            }
+            if (!isPackageOwnedBy(pkgName, ownerUid)) {
+                // or the tenant could be published as the ssproxy service of another app
+                LibLogger.w(TAG, "package " + pkgName + " not owned by " + ownerUid);
+                return 0;
+            }
+            final String serviceName = getSspServiceName(pkgName);
+            final SysServiceProxyNative tenant = new SysServiceProxyNative(ownerUid, sspVersion,
+                    mHostNative, mLookupQuota);
+            tenant.setLifecycleListener(new SysServiceProxyNative.LifecycleListener() {
+                @Override
+                public void onReplaced() {
+                    if (ServiceManagerIA.checkService(serviceName) != tenant) {
+                        removeTenant(serviceName, tenant);
+                    }
+                }
+
+                @Override
+                public void onOwnerDied() {
+                    removeTenant(serviceName, tenant);
+                }
+
+                @Override
+                public void onShutdown() {
+                    removeTenant(serviceName, tenant);
+                }
+            });
+            synchronized (this) {
+                if (mClosed) {
+                    tenant.close();
+                    return 0; // quitting
+                }
+                mTenants.put(serviceName, tenant);
+            }
+
+            if (usageProfilePath != null) {
+                tenant.setUsageProfile(new File(usageProfilePath));
+                tenant.prefetch(mPrefetchCount);
+            }
+
+            // take over from the old daemon or tenant, the same as the dedicated daemon
+            IBinder oldBinder = ServiceManagerIA.checkService(serviceName);
+            warmUpFrom(tenant, oldBinder);
+            ServiceManagerIA.addService(serviceName, tenant);
+            notifyReplaced(oldBinder);
+            if (DEBUG) LibLogger.d(TAG, "tenant added: " + serviceName + ", owner: " + ownerUid);
+            return Process.myPid();
+        }
+
+        private void removeTenant(String serviceName, SysServiceProxyNative tenant) {
+            boolean empty;
+            synchronized (this) {
+                if (mTenants.get(serviceName) != tenant) {
+                    // replaced by a new tenant of the same owner, or removed already
+                    tenant.close();
+                    return;
+                }
+                mTenants.remove(serviceName);
+                empty = mTenants.isEmpty();
+                if (empty) {
+                    mClosed = true;
+                }
+            }
+            // the tenant entry stays in the service manager until we quit
+            tenant.close();
+            tenant.dismissStandby();
+            tenant.saveUsageProfile();
+            if (DEBUG) LibLogger.d(TAG, "tenant removed: " + serviceName);
+            if (empty) {
+                mSignal.post(MainSignal.QUIT);
+            }
+        }
+
+        void close() {
+            ArrayList<SysServiceProxyNative> tenants;
+            synchronized (this) {
+                mClosed = true;
+                tenants = new ArrayList<>(mTenants.values());
+                mTenants.clear();
+            }
+            for (SysServiceProxyNative tenant : tenants) {
+                tenant.close();
+                tenant.dismissStandby();
+                tenant.saveUsageProfile();
+            }
+        }
+    }
+
+    /**
+     * Events which wake up the main thread of the daemon.
+     */
+    private static class MainSignal {
+        static final int NONE = 0;
+        static final int PROMOTE = 1;
+        static final int QUIT = 2; // wins over other events
+
+        private int mEvent = NONE;
+
+        synchronized void post(int event) {
+            if (event > mEvent) {
+                mEvent = event;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Wait for the next event. The QUIT event is sticky.
+         */
+        synchronized int await() {
+            while (mEvent == NONE) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    if (DEBUG) LibLogger.w(TAG, "interrupted");
+                    return QUIT;
+                }
+            }
+            int event = mEvent;
+            if (event != QUIT) {
+                mEvent = NONE;
+            }
+            return event;
+        }
+    }
 }
@@ -0,0 +1,124 @@
+package me.ycdev.android.lib.ssproxy;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
+import me.ycdev.android.lib.ssproxy.utils.LibLogger;
+
+/**
+ * Base class of the typed service proxies generated from the specs in "src/main/ssproxy"
+ * (see lib/ssproxy-codegen.gradle). The generated methods write the parcels directly,
+ * and fall back to invoking the framework interface by reflection if the transaction code
+ * cannot be resolved on this ROM.
+ */
+public abstract class TypedServiceProxy {
+    private static final String TAG = "TypedServiceProxy";
+    private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
+
+    /** The transaction code is not resolved yet */
+    protected static final int UNRESOLVED_CODE = -2;
+
+    private final SysServiceProxy mSsp;
+    private final String mServiceName;
+    private final String[] mAsInterfaceClasses;
+
+    private IBinder mFallbackBinder;
+    private Object mFallbackService;
+
+    /**
+     * @param asInterfaceClasses Classes with the static method "asInterface(IBinder)",
+     *                           tried in order for the reflection fallback
+     */
+    protected TypedServiceProxy(@NonNull SysServiceProxy ssp, @NonNull String serviceName,
+            @NonNull String[] asInterfaceClasses) {
+        mSsp = ssp;
+        mServiceName = serviceName;
+        mAsInterfaceClasses = asInterfaceClasses;
+    }
+
+    public String getServiceName() {
+        return mServiceName;
+    }
+
+    /**
+     * @throws DeadObjectException if the service is unavailable
+     */
+    @NonNull
+    protected IBinder getBinder() throws RemoteException {
+        IBinder binder = mSsp.getService(mServiceName);
+        if (binder == null) {
+            throw new DeadObjectException();
+        }
+        return binder;
+    }
+
+    /**
+     * Resolve the transaction code from the candidates in the form of "className#fieldName".
+     * @return {@link StubResolver#INVALID_CODE} if none of them found
+     */
+    protected static int resolveCode(String... candidates) {
+        for (String candidate : candidates) {
+            int index = candidate.indexOf('#');
+            int code = StubResolver.getCodeConstant(candidate.substring(0, index),
+                    candidate.substring(index + 1));
+            if (code != StubResolver.INVALID_CODE) {
+                return code;
+            }
+        }
+        if (DEBUG) LibLogger.w(TAG, "failed to resolve the code, use reflection instead");
+        return StubResolver.INVALID_CODE;
+    }
+
+    /**
+     * Invoke the method of the framework interface by reflection.
+     * @throws UnsupportedMethodException if the method is not found on this ROM
+     */
+    @Nullable
+    protected Object invokeFallback(String methodName, Class<?>[] paramTypes, Object[] args)
+            throws RemoteException {
+        Object service = getFallbackService();
+        try {
+            Method method = service.getClass().getMethod(methodName, paramTypes);
+            return method.invoke(service, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new UnsupportedMethodException(methodName + " failed", cause);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new UnsupportedMethodException(methodName + " not supported", e);
+        }
+    }
+
+    private synchronized Object getFallbackService() throws RemoteException {
+        IBinder binder = getBinder();
+        if (binder == mFallbackBinder && mFallbackService != null) {
+            return mFallbackService;
+        }
+        for (String className : mAsInterfaceClasses) {
+            try {
+                Method asInterface = Class.forName(className).getMethod("asInterface",
+                        IBinder.class);
+                Object service = asInterface.invoke(null, binder);
+                if (service != null) {
+                    mFallbackBinder = binder;
+                    mFallbackService = service;
+                    return service;
+                }
+            } catch (Exception e) {
+                if (DEBUG) LibLogger.d(TAG, "no asInterface in " + className + ": " + e);
+            }
+        }
+        throw new UnsupportedMethodException("no interface found for " + mServiceName);
+    }
+}
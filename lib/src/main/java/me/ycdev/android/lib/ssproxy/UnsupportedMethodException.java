@@ -0,0 +1,27 @@
+package me.ycdev.android.lib.ssproxy;
+
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+
+/**
+ * Thrown by {@link TypedServiceProxy} if the service method cannot be invoked on this ROM.
+ * It's a {@link RemoteException}, so the callers handle it like the other binder failures.
+ */
+public class UnsupportedMethodException extends RemoteException {
+    private final String mMessage;
+
+    public UnsupportedMethodException(String message) {
+        // RemoteException(String) is not available before Android 4.0.3
+        mMessage = message;
+    }
+
+    public UnsupportedMethodException(String message, @Nullable Throwable cause) {
+        this(message);
+        initCause(cause);
+    }
+
+    @Override
+    public String getMessage() {
+        return mMessage;
+    }
+}
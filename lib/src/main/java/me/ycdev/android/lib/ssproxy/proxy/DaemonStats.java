@@ -0,0 +1,144 @@
+package me.ycdev.android.lib.ssproxy.proxy;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transaction statistics of the daemon, broken down by ssproxy transaction code,
+ * target service name and calling uid.
+ * <p>In the shared daemon, each tenant has its own statistics, which only counts
+ * the transactions of its owner, so that the apps cannot see the usage of each other.</p>
+ */
+class DaemonStats {
+    private static final int SSP_CODES_CAPACITY = 16;
+    private static final int UIDS_CAPACITY = 16;
+    private static final int SERVICE_CODES_CAPACITY = 32;
+    private static final int SERVICES_MAX = 64;
+    private static final String OTHER_SERVICES = "others";
+
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private final TransactionStats mSspStats =
+            new TransactionStats(SspStats.SCOPE_SSP, SSP_CODES_CAPACITY);
+    private final TransactionStats mUidStats =
+            new TransactionStats(SspStats.SCOPE_UID, UIDS_CAPACITY);
+    private final ConcurrentHashMap<String, TransactionStats> mServiceStats =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> mTraceNameIds = new ConcurrentHashMap<>();
+    private final TransactionTraceRing mTraceRing;
+    private final int mTraceCapacity;
+    private final int mOwnerUid; // only for the tenants
+    // copy on write, the tenants are rarely added or removed
+    private volatile DaemonStats[] mTenantStats = new DaemonStats[0];
+
+    /**
+     * @param traceCapacity Count of the transaction traces to keep
+     */
+    DaemonStats(int traceCapacity) {
+        this(traceCapacity, -1);
+    }
+
+    private DaemonStats(int traceCapacity, int ownerUid) {
+        mTraceRing = new TransactionTraceRing(traceCapacity);
+        mTraceCapacity = traceCapacity;
+        mOwnerUid = ownerUid;
+    }
+
+    /**
+     * Create the statistics of a tenant. The forwarded transactions of its owner
+     * will be recorded into it too.
+     */
+    public synchronized DaemonStats addTenantStats(int ownerUid) {
+        DaemonStats stats = new DaemonStats(mTraceCapacity, ownerUid);
+        DaemonStats[] tenantStats = Arrays.copyOf(mTenantStats, mTenantStats.length + 1);
+        tenantStats[tenantStats.length - 1] = stats;
+        mTenantStats = tenantStats;
+        return stats;
+    }
+
+    public synchronized void removeTenantStats(DaemonStats stats) {
+        ArrayList<DaemonStats> tenantStats = new ArrayList<>(Arrays.asList(mTenantStats));
+        if (tenantStats.remove(stats)) {
+            mTenantStats = tenantStats.toArray(new DaemonStats[tenantStats.size()]);
+        }
+    }
+
+    public void recordSspTransaction(int code, int callingUid, long durationNanos,
+            boolean failed) {
+        mSspStats.record(code, durationNanos, failed);
+        mUidStats.record(callingUid, durationNanos, failed);
+    }
+
+    /**
+     * Record a transaction forwarded by {@link BinderWrapper}.
+     * @param startTime Value of {@link System#nanoTime()} when the transaction started
+     * @param endTime Value of {@link System#nanoTime()} when the transaction ended
+     */
+    public void recordServiceTransaction(String name, TransactionStats serviceStats, int nameId,
+            int code, int flags, int callingUid, int callingPid, int dataSize, int replySize,
+            long startTime, long endTime, boolean failed) {
+        long durationNanos = endTime - startTime;
+        serviceStats.record(code, durationNanos, failed);
+        mUidStats.record(callingUid, durationNanos, failed);
+        mTraceRing.record(nameId, code, flags, callingUid, callingPid, dataSize, replySize,
+                startTime, endTime);
+
+        for (DaemonStats stats : mTenantStats) {
+            if (stats.mOwnerUid == callingUid) {
+                stats.recordServiceTransaction(name, stats.getServiceStats(name),
+                        stats.getTraceNameId(name), code, flags, callingUid, callingPid,
+                        dataSize, replySize, startTime, endTime, failed);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Get the id of the service used in the transaction traces.
+     */
+    public int getTraceNameId(String name) {
+        Integer id = mTraceNameIds.get(name);
+        if (id == null) {
+            id = mTraceRing.getNameId(name);
+            mTraceNameIds.put(name, id);
+        }
+        return id;
+    }
+
+    public void dumpTraces(PrintWriter fout) {
+        mTraceRing.dump(fout);
+    }
+
+    /**
+     * Get the statistics table of the service.
+     */
+    public TransactionStats getServiceStats(String name) {
+        TransactionStats stats = mServiceStats.get(name);
+        if (stats == null) {
+            if (mServiceStats.size() >= SERVICES_MAX) {
+                name = OTHER_SERVICES;
+            }
+            stats = new TransactionStats(SspStats.SCOPE_SERVICE_PREFIX + name,
+                    SERVICE_CODES_CAPACITY);
+            TransactionStats oldStats = mServiceStats.putIfAbsent(name, stats);
+            if (oldStats != null) {
+                stats = oldStats;
+            }
+        }
+        return stats;
+    }
+
+    public SspStats snapshot(long serviceLookups, long coalescedLookups) {
+        ArrayList<SspStats.Entry> entries = new ArrayList<>();
+        mSspStats.snapshot(entries);
+        mUidStats.snapshot(entries);
+        for (TransactionStats stats : mServiceStats.values()) {
+            stats.snapshot(entries);
+        }
+        return new SspStats(SystemClock.elapsedRealtime() - mStartTime, serviceLookups,
+                coalescedLookups, entries);
+    }
+}
@@ -11,13 +11,41 @@ import android.os.IInterface;
 public interface ISysServiceProxy extends IInterface {
     static final String SSP_DESCRIPTOR = "me.ycdev.android.lib.ssproxy.proxy.ISysServiceProxy";
 
-    static final int SSP_VERSION = 1;
+    static final int SSP_VERSION = 9;
 
     static final int GET_SSP_VERSION_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION;
     static final int GET_SERVICE_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 1;
     static final int CHECK_SERVICE_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 2;
     static final int ADD_SERVICE_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 3;
     static final int LIST_SERVICES_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 4;
+    static final int GET_SERVICES_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 5;
+    static final int GET_STATS_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 6;
+    static final int NOTIFY_REPLACED_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 7;
+    static final int ATTACH_OWNER_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 8;
+    static final int SHUTDOWN_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 9;
+    static final int GET_CACHED_NAMES_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 10;
+    static final int REGISTER_STANDBY_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 11;
+    static final int ADD_TENANT_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 12;
+    static final int REGISTER_NAME_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 13;
+    static final int GET_SERVICE_BY_HANDLE_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 14;
+    static final int CHECK_SERVICE_BY_HANDLE_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 15;
+    static final int DISMISS_STANDBY_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 16;
+
+    /**
+     * Written instead of the interface token by the transactions using service handles,
+     * which are available since a handle was got by {@link #registerName(String)},
+     * or from the reply of a successful lookup by name.
+     */
+    static final int SSP_COMPACT_TOKEN = 0x53535032; // "SSP2"
+
+    // appended to the lookup replies, so that the client can switch to the new daemon
+    static final int LOOKUP_STATUS_OK = 0;
+    static final int LOOKUP_STATUS_CLOSED = 1; // replaced or quitting, new lookups rejected
+
+    // results of shutdown()
+    static final int SHUTDOWN_REJECTED = 0;
+    static final int SHUTDOWN_EXITING = 1; // the daemon process will quit
+    static final int SHUTDOWN_DETACHED = 2; // the tenant was removed from the shared daemon
 
     /**
      * Get version of the SSP binder.
@@ -31,11 +59,28 @@ public interface ISysServiceProxy extends IInterface {
      */
     public IBinder getService(String name);
 
+    /**
+     * The same as {@link #getService(String)}, but waits at most @a timeoutMillis
+     * milliseconds for the result. Zero or negative value means no timeout.
+     */
+    public IBinder getService(String name, long timeoutMillis);
+
     /**
      * Retrieve an existing service called @a name from the service manager. Non-blocking.
      */
     public IBinder checkService(String name);
 
+    /**
+     * Retrieve existing services called @a names in one call, the same as {@link #getService(String)}.
+     * The returned array has the same length as @a names, and the missing services are null.
+     */
+    public IBinder[] getServices(String[] names);
+
+    /**
+     * Get the transaction statistics of the SSP binder.
+     */
+    public SspStats getStats();
+
     /**
      * Place a new @a service called @a name into the service manager.
      */
@@ -46,4 +91,78 @@ public interface ISysServiceProxy extends IInterface {
      */
     public String[] listServices();
 
+    /**
+     * Tell the SSP binder that it was replaced in the service manager,
+     * so that the daemon can quit. Only root or system can invoke it. Oneway call.
+     */
+    public void notifyReplaced();
+
+    /**
+     * Whether the daemon rejects new lookups, because it's replaced or quitting.
+     * The client side knows it from the last lookup reply, no transaction needed.
+     */
+    public boolean isClosed();
+
+    /**
+     * Attach a token binder of the owner, the daemon will quit when the token died.
+     */
+    public void attachOwner(IBinder token);
+
+    /**
+     * Ask the daemon to quit. It stops accepting new lookups at once, and waits at most
+     * @a drainTimeoutMillis milliseconds for the in-flight transactions before quitting.
+     * @return One of {@link #SHUTDOWN_REJECTED} (also if not supported),
+     *         {@link #SHUTDOWN_EXITING} and {@link #SHUTDOWN_DETACHED}
+     */
+    public int shutdown(long drainTimeoutMillis);
+
+    /**
+     * Get names of the services cached in the daemon, so that a new daemon can warm up
+     * its cache before taking over. Only root or system can invoke it.
+     * @return null if not supported
+     */
+    public String[] getCachedServiceNames();
+
+    /**
+     * Register a standby daemon, which will take over when this one died.
+     * It will be told to quit (by {@link #notifyReplaced()}) if this one quits gracefully.
+     * Only root or system can invoke it.
+     * @return false if not supported
+     */
+    public boolean registerStandby(IBinder standby);
+
+    /**
+     * Tell the standby daemon to quit, if any. Only the owner can invoke it.
+     */
+    public void dismissStandby();
+
+    /**
+     * Ask the shared daemon to host a new tenant for the owner @a ownerUid, and publish
+     * the tenant as the SSP binder of @a pkgName, which must belong to @a ownerUid.
+     * Only root or system can invoke it.
+     * @param usageProfilePath Optional, where to save the usage profile of the tenant
+     * @return The pid of the shared daemon, or 0 if rejected or not supported
+     */
+    public int addTenant(int ownerUid, String pkgName, int sspVersion,
+            String usageProfilePath);
+
+    /**
+     * Register the service name @a name, so that the service can be retrieved
+     * by the returned handle later, with less marshalling cost.
+     * @return The handle, or -1 if not supported or too many names registered
+     */
+    public int registerName(String name);
+
+    /**
+     * The same as {@link #getService(String)}, but by the handle got from
+     * {@link #registerName(String)}.
+     */
+    public IBinder getServiceByHandle(int handle);
+
+    /**
+     * The same as {@link #checkService(String)}, but by the handle got from
+     * {@link #registerName(String)}.
+     */
+    public IBinder checkServiceByHandle(int handle);
+
 }
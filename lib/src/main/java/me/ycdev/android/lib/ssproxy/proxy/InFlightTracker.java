@@ -0,0 +1,86 @@
+package me.ycdev.android.lib.ssproxy.proxy;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Count the in-flight work of the daemon, so that it can be drained before the daemon quits.
+ * <p>It's on the path of every forwarded transaction, so no lock is taken unless
+ * {@link #drain(long)} is waiting.</p>
+ */
+class InFlightTracker {
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private volatile boolean mClosed;
+    private volatile int mDrainWaiters; // only changed with this locked
+
+    /**
+     * @return false if closed, the work should be rejected
+     */
+    public boolean enter() {
+        // count it before checking, so that drain() cannot miss it after closed
+        mInFlight.incrementAndGet();
+        if (mClosed) {
+            exit();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Should be invoked only if {@link #enter()} returned true.
+     */
+    public void exit() {
+        if (mInFlight.decrementAndGet() == 0 && mDrainWaiters > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Some work cannot be rejected, for example, transactions forwarded by the wrapper binders
+     * which were handed out already. They should be tracked even if closed.
+     */
+    public void forceEnter() {
+        mInFlight.incrementAndGet();
+    }
+
+    public void close() {
+        mClosed = true;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    public int getCount() {
+        return mInFlight.get();
+    }
+
+    /**
+     * Wait for the in-flight work to finish. New work is still accepted if not closed.
+     * @return true if all the in-flight work finished before the timeout
+     */
+    public synchronized boolean drain(long timeoutMillis) {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        mDrainWaiters++;
+        try {
+            while (mInFlight.get() > 0) {
+                long waitTime = deadline - SystemClock.elapsedRealtime();
+                if (waitTime <= 0) {
+                    return false;
+                }
+                try {
+                    wait(waitTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            mDrainWaiters--;
+        }
+    }
+}
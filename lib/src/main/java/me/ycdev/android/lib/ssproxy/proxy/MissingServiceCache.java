@@ -0,0 +1,94 @@
+package me.ycdev.android.lib.ssproxy.proxy;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remember the services which were not found in the service manager for a while,
+ * so that repeated lookups of them can return immediately.
+ * <p>A non-blocking miss doesn't mean the service won't be published in a moment,
+ * so the misses of the checks are kept in another instance with a short TTL,
+ * and don't fail the blocking lookups.</p>
+ */
+public class MissingServiceCache {
+    public static final long DEFAULT_TTL = 0; // disabled, for the blocking misses
+    public static final long DEFAULT_CHECK_TTL = 1000; // 1 second, for the check misses
+
+    private static final int MAX_SIZE = 64;
+
+    private final ConcurrentHashMap<String, Long> mExpireTimes = new ConcurrentHashMap<>();
+    private volatile long mTtl;
+
+    /**
+     * @param ttl In milliseconds. Zero or negative value disables the cache.
+     */
+    public MissingServiceCache(long ttl) {
+        mTtl = ttl;
+    }
+
+    public void setTtl(long ttl) {
+        mTtl = ttl;
+        if (ttl <= 0) {
+            mExpireTimes.clear();
+        }
+    }
+
+    public long getTtl() {
+        return mTtl;
+    }
+
+    public boolean isMissing(String name) {
+        Long expireTime = mExpireTimes.get(name);
+        if (expireTime == null) {
+            return false;
+        }
+        if (SystemClock.elapsedRealtime() < expireTime) {
+            return true;
+        }
+        mExpireTimes.remove(name, expireTime);
+        return false;
+    }
+
+    public void markMissing(String name) {
+        long ttl = mTtl;
+        if (ttl <= 0) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (mExpireTimes.size() >= MAX_SIZE) {
+            trim(now);
+        }
+        mExpireTimes.put(name, now + ttl);
+    }
+
+    /**
+     * Should be invoked when the service is added.
+     */
+    public void remove(String name) {
+        mExpireTimes.remove(name);
+    }
+
+    public void clear() {
+        mExpireTimes.clear();
+    }
+
+    private void trim(long now) {
+        Iterator<Map.Entry<String, Long>> it = mExpireTimes.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue() <= now) {
+                it.remove();
+            }
+        }
+        if (mExpireTimes.size() >= MAX_SIZE) {
+            // too many names are probed
+            mExpireTimes.clear();
+        }
+    }
+
+    public int size() {
+        return mExpireTimes.size();
+    }
+}
@@ -0,0 +1,54 @@
+package me.ycdev.android.lib.ssproxy.proxy;
+
+import android.os.Binder;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
+import me.ycdev.android.lib.ssproxy.utils.LibLogger;
+
+/**
+ * The token binder attached to the daemon by the owner, see
+ * {@link ISysServiceProxy#attachOwner(android.os.IBinder)}. The daemon quits when it died,
+ * and tells the owner through it when a service returned before died.
+ */
+public class OwnerToken extends Binder {
+    private static final String TAG = "OwnerToken";
+    private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
+
+    static final String DESCRIPTOR = "me.ycdev.android.lib.ssproxy.proxy.OwnerToken";
+    static final int SERVICE_DIED_TRANSACTION = FIRST_CALL_TRANSACTION; // oneway
+
+    interface ServiceDeathListener {
+        void onServiceDied(String name);
+    }
+
+    private volatile ServiceDeathListener mListener;
+
+    void setServiceDeathListener(@Nullable ServiceDeathListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    protected boolean onTransact(int code, @NonNull Parcel data, Parcel reply, int flags)
+            throws RemoteException {
+        if (code == SERVICE_DIED_TRANSACTION) {
+            int uid = getCallingUid();
+            if (uid != 0 /* root */ && uid != Process.SYSTEM_UID) {
+                throw new SecurityException("Unknown caller uid: " + uid);
+            }
+            data.enforceInterface(DESCRIPTOR);
+            String name = data.readString();
+            if (DEBUG) LibLogger.d(TAG, "service died: " + name);
+            ServiceDeathListener listener = mListener;
+            if (listener != null && name != null) {
+                listener.onServiceDied(name);
+            }
+            return true;
+        }
+        return super.onTransact(code, data, reply, flags);
+    }
+}
@@ -0,0 +1,233 @@
+package me.ycdev.android.lib.ssproxy.proxy;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
+import me.ycdev.android.lib.ssproxy.utils.LibLogger;
+
+/**
+ * A bounded LRU cache of the wrapped services in the daemon.
+ * <p>An entry will be removed when the cache is full and it's the least recently used one,
+ * when it's idle for too long, or as soon as its target binder died.</p>
+ * <p>The lookups by handle bypass the cache and only touch the services
+ * (see {@link BinderWrapper#touch()}), which are checked before eviction.</p>
+ */
+class ServiceCache {
+    private static final String TAG = "ServiceCache";
+    private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
+
+    static final int DEFAULT_MAX_SIZE = 32;
+    static final long DEFAULT_IDLE_TIMEOUT = 30 * 60 * 1000; // 30 minutes
+
+    private final int mMaxSize;
+    private final long mIdleTimeout;
+    // in access order, the eldest one is the least recently used one
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final CopyOnWriteArrayList<OnEvictedListener> mListeners =
+            new CopyOnWriteArrayList<>();
+
+    interface OnEvictedListener {
+        /**
+         * Invoked when a service is removed from the cache for any reason.
+         * It's invoked with the cache locked, so it should be fast.
+         */
+        void onEvicted(String name, BinderWrapper service);
+    }
+
+    /**
+     * @param maxSize Max count of the cached services
+     * @param idleTimeout In milliseconds. The entries not accessed in this time will be removed.
+     */
+    public ServiceCache(int maxSize, long idleTimeout) {
+        mMaxSize = maxSize > 0 ? maxSize : DEFAULT_MAX_SIZE;
+        mIdleTimeout = idleTimeout > 0 ? idleTimeout : DEFAULT_IDLE_TIMEOUT;
+    }
+
+    public void addOnEvictedListener(OnEvictedListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeOnEvictedListener(OnEvictedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    @Nullable
+    public BinderWrapper get(String name) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(name);
+            if (entry == null) {
+                return null;
+            }
+            if (!entry.mWrapper.isBinderAlive()) {
+                mEntries.remove(name);
+                entry.unlink();
+                notifyEvictedLocked(entry);
+                return null;
+            }
+            entry.mLastAccessTime = SystemClock.elapsedRealtime();
+            return entry.mWrapper;
+        }
+    }
+
+    public void put(String name, @NonNull BinderWrapper wrapper) {
+        Entry entry = new Entry(name, wrapper);
+        if (!entry.link()) {
+            if (DEBUG) LibLogger.d(TAG, "target died already: " + name);
+            return;
+        }
+
+        synchronized (mEntries) {
+            Entry oldEntry = mEntries.put(name, entry);
+            if (oldEntry != null) {
+                oldEntry.unlink();
+                notifyEvictedLocked(oldEntry);
+            }
+            trimLocked(entry.mLastAccessTime);
+        }
+    }
+
+    public void remove(String name) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.remove(name);
+            if (entry != null) {
+                entry.unlink();
+                notifyEvictedLocked(entry);
+            }
+        }
+    }
+
+    /**
+     * Remove the idle entries and the least recently used entries beyond the max size.
+     */
+    public void trim() {
+        synchronized (mEntries) {
+            trimLocked(SystemClock.elapsedRealtime());
+        }
+    }
+
+    private void trimLocked(long now) {
+        ArrayList<Entry> touchedEntries = null;
+        Iterator<Entry> it = mEntries.values().iterator();
+        int size = mEntries.size();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (size <= mMaxSize && now - entry.mLastAccessTime < mIdleTimeout) {
+                break; // the remaining entries were accessed more recently
+            }
+            it.remove();
+            long touchTime = entry.mWrapper.getLastAccessTime();
+            if (touchTime > entry.mLastAccessTime) {
+                // accessed by handle, move it to the most recently used end below
+                entry.mLastAccessTime = touchTime;
+                if (touchedEntries == null) {
+                    touchedEntries = new ArrayList<>();
+                }
+                touchedEntries.add(entry);
+                continue;
+            }
+            evictLocked(entry);
+            size--;
+        }
+
+        if (touchedEntries != null) {
+            for (Entry entry : touchedEntries) {
+                mEntries.put(entry.mName, entry);
+            }
+            // still too many if all of them were accessed by handle
+            it = mEntries.values().iterator();
+            while (mEntries.size() > mMaxSize && it.hasNext()) {
+                Entry entry = it.next();
+                it.remove();
+                evictLocked(entry);
+            }
+        }
+    }
+
+    private void evictLocked(Entry entry) {
+        if (DEBUG) LibLogger.d(TAG, "evict service: " + entry.mName);
+        entry.unlink();
+        notifyEvictedLocked(entry);
+    }
+
+    private void notifyEvictedLocked(Entry entry) {
+        for (OnEvictedListener listener : mListeners) {
+            listener.onEvicted(entry.mName, entry.mWrapper);
+        }
+    }
+
+    /**
+     * Get names of the cached services, from the least recently used one.
+     */
+    public String[] getNames() {
+        synchronized (mEntries) {
+            return mEntries.keySet().toArray(new String[mEntries.size()]);
+        }
+    }
+
+    public int size() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    public void dump(PrintWriter fout) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mEntries) {
+            trimLocked(now);
+            fout.println("Caches (" + mEntries.size() + "/" + mMaxSize + "): ");
+            for (Entry entry : mEntries.values()) {
+                long accessTime = Math.max(entry.mLastAccessTime,
+                        entry.mWrapper.getLastAccessTime());
+                fout.println("\t" + entry.mName + ": " + entry.mWrapper.isBinderAlive()
+                        + ", idle " + (now - accessTime) + "ms");
+            }
+        }
+    }
+
+    private class Entry implements IBinder.DeathRecipient {
+        private String mName;
+        private BinderWrapper mWrapper;
+        private long mLastAccessTime;
+
+        Entry(String name, BinderWrapper wrapper) {
+            mName = name;
+            mWrapper = wrapper;
+            mLastAccessTime = SystemClock.elapsedRealtime();
+        }
+
+        boolean link() {
+            try {
+                mWrapper.getTarget().linkToDeath(this, 0);
+                return true;
+            } catch (RemoteException e) {
+                return false;
+            }
+        }
+
+        void unlink() {
+            mWrapper.getTarget().unlinkToDeath(this, 0);
+        }
+
+        @Override
+        public void binderDied() {
+            if (DEBUG) LibLogger.d(TAG, "service died: " + mName);
+            synchronized (mEntries) {
+                if (mEntries.get(mName) == this) {
+                    mEntries.remove(mName);
+                    notifyEvictedLocked(this);
+                }
+            }
+            unlink();
+        }
+    }
+}
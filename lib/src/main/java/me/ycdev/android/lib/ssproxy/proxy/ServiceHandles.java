@@ -0,0 +1,93 @@
+package me.ycdev.android.lib.ssproxy.proxy;
+
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Integer handles of the service names registered by the owner. The lookups by handle
+ * hit an array slot directly, no string parceling or hashing needed.
+ * <p>A slot is cleared when its service is evicted from the {@link ServiceCache}.
+ * The lookups here don't lock the cache, so they only touch the service,
+ * and the cache checks it before eviction.</p>
+ */
+class ServiceHandles implements ServiceCache.OnEvictedListener {
+    static final int MAX_HANDLES = 256;
+
+    // the registration is rare, so a lock is fine
+    private final HashMap<String, Integer> mHandles = new HashMap<>();
+    private final AtomicReferenceArray<String> mNames = new AtomicReferenceArray<>(MAX_HANDLES);
+    private final AtomicReferenceArray<BinderWrapper> mSlots =
+            new AtomicReferenceArray<>(MAX_HANDLES);
+
+    /**
+     * @return The handle of the name, or -1 if there are too many handles
+     */
+    public synchronized int register(String name) {
+        Integer handle = mHandles.get(name);
+        if (handle != null) {
+            return handle;
+        }
+        int size = mHandles.size();
+        if (size >= MAX_HANDLES) {
+            return -1;
+        }
+        mNames.set(size, name);
+        mHandles.put(name, size);
+        return size;
+    }
+
+    /**
+     * @return null if the handle is unknown
+     */
+    @Nullable
+    public String getName(int handle) {
+        return isValid(handle) ? mNames.get(handle) : null;
+    }
+
+    /**
+     * @return null if the handle is unknown, or the service is not cached or died
+     */
+    @Nullable
+    public BinderWrapper getService(int handle) {
+        if (!isValid(handle)) {
+            return null;
+        }
+        BinderWrapper service = mSlots.get(handle);
+        if (service == null) {
+            return null;
+        }
+        if (!service.isBinderAlive()) {
+            mSlots.compareAndSet(handle, service, null);
+            return null;
+        }
+        service.touch();
+        return service;
+    }
+
+    public void setService(int handle, BinderWrapper service) {
+        if (isValid(handle)) {
+            mSlots.set(handle, service);
+        }
+    }
+
+    @Override
+    public void onEvicted(String name, BinderWrapper service) {
+        Integer handle;
+        synchronized (this) {
+            handle = mHandles.get(name);
+        }
+        if (handle != null) {
+            mSlots.compareAndSet(handle, service, null);
+        }
+    }
+
+    public synchronized int size() {
+        return mHandles.size();
+    }
+
+    private static boolean isValid(int handle) {
+        return handle >= 0 && handle < MAX_HANDLES;
+    }
+}
@@ -0,0 +1,249 @@
+package me.ycdev.android.lib.ssproxy.proxy;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Snapshot of the transaction statistics of the ssproxy daemon.
+ */
+public class SspStats implements Parcelable {
+    /**
+     * Upper bounds (inclusive, in microseconds) of the latency buckets.
+     * The last bucket is for the transactions slower than the last bound.
+     */
+    public static final long[] BUCKET_BOUNDS_MICROS = {
+            100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 1000000
+    };
+    public static final int BUCKET_COUNT = BUCKET_BOUNDS_MICROS.length + 1;
+
+    public static final String SCOPE_SSP = "ssp";
+    public static final String SCOPE_UID = "uid";
+    public static final String SCOPE_SERVICE_PREFIX = "service:";
+
+    private long mUptimeMillis;
+    private long mServiceLookups;
+    private long mCoalescedLookups;
+    private ArrayList<Entry> mEntries;
+
+    SspStats(long uptimeMillis, long serviceLookups, long coalescedLookups,
+            ArrayList<Entry> entries) {
+        mUptimeMillis = uptimeMillis;
+        mServiceLookups = serviceLookups;
+        mCoalescedLookups = coalescedLookups;
+        mEntries = entries;
+    }
+
+    private SspStats(Parcel in) {
+        mUptimeMillis = in.readLong();
+        mServiceLookups = in.readLong();
+        mCoalescedLookups = in.readLong();
+        mEntries = in.createTypedArrayList(Entry.CREATOR);
+    }
+
+    static int getBucketIndex(long durationNanos) {
+        long micros = durationNanos / 1000;
+        for (int i = 0; i < BUCKET_BOUNDS_MICROS.length; i++) {
+            if (micros <= BUCKET_BOUNDS_MICROS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MICROS.length;
+    }
+
+    /**
+     * How long the daemon has been running, in milliseconds.
+     */
+    public long getUptimeMillis() {
+        return mUptimeMillis;
+    }
+
+    /**
+     * Count of the real lookups sent to the service manager.
+     */
+    public long getServiceLookups() {
+        return mServiceLookups;
+    }
+
+    /**
+     * Count of the lookup requests which shared the result of another in-flight lookup.
+     */
+    public long getCoalescedLookups() {
+        return mCoalescedLookups;
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    public void dump(PrintWriter fout) {
+        fout.println("Uptime: " + mUptimeMillis + "ms");
+        fout.println("Service lookups: " + mServiceLookups);
+        fout.println("Coalesced lookups: " + mCoalescedLookups);
+        fout.print("Latency buckets (us): ");
+        for (long bound : BUCKET_BOUNDS_MICROS) {
+            fout.print("<=" + bound + " ");
+        }
+        fout.println(">" + BUCKET_BOUNDS_MICROS[BUCKET_BOUNDS_MICROS.length - 1]);
+        String lastScope = null;
+        for (Entry entry : mEntries) {
+            if (!entry.mScope.equals(lastScope)) {
+                fout.println("Stats of " + entry.mScope + ":");
+                lastScope = entry.mScope;
+            }
+            fout.println("\t" + entry);
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mUptimeMillis);
+        dest.writeLong(mServiceLookups);
+        dest.writeLong(mCoalescedLookups);
+        dest.writeTypedList(mEntries);
+    }
+
+    public static final Creator<SspStats> CREATOR = new Creator<SspStats>() {
+        @Override
+        public SspStats createFromParcel(Parcel source) {
+            return new SspStats(source);
+        }
+
+        @Override
+        public SspStats[] newArray(int size) {
+            return new SspStats[size];
+        }
+    };
+
+    /**
+     * Statistics of one key (transaction code or calling uid) in one scope.
+     */
+    public static class Entry implements Parcelable {
+        /**
+         * The key used when there are too many different keys in one scope.
+         */
+        public static final int KEY_OTHERS = Integer.MIN_VALUE;
+
+        private String mScope;
+        private int mKey;
+        private long mCount;
+        private long mErrors;
+        private long mTotalNanos;
+        private long mMaxNanos;
+        private long[] mBuckets;
+
+        Entry(String scope, int key, long count, long errors, long totalNanos, long maxNanos,
+                long[] buckets) {
+            mScope = scope;
+            mKey = key;
+            mCount = count;
+            mErrors = errors;
+            mTotalNanos = totalNanos;
+            mMaxNanos = maxNanos;
+            mBuckets = buckets;
+        }
+
+        private Entry(Parcel in) {
+            mScope = in.readString();
+            mKey = in.readInt();
+            mCount = in.readLong();
+            mErrors = in.readLong();
+            mTotalNanos = in.readLong();
+            mMaxNanos = in.readLong();
+            mBuckets = in.createLongArray();
+        }
+
+        /**
+         * One of {@link #SCOPE_SSP}, {@link #SCOPE_UID},
+         * or {@link #SCOPE_SERVICE_PREFIX} + service name.
+         */
+        public String getScope() {
+            return mScope;
+        }
+
+        /**
+         * Transaction code, or calling uid for {@link #SCOPE_UID}.
+         */
+        public int getKey() {
+            return mKey;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getErrors() {
+            return mErrors;
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        /**
+         * Counts of the latency buckets defined by {@link #BUCKET_BOUNDS_MICROS}.
+         */
+        public long[] getBuckets() {
+            return mBuckets;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(mKey == KEY_OTHERS ? "others" : String.valueOf(mKey));
+            sb.append(": count=").append(mCount);
+            sb.append(", errors=").append(mErrors);
+            sb.append(", avg=").append(mCount > 0 ? mTotalNanos / mCount / 1000 : 0).append("us");
+            sb.append(", max=").append(mMaxNanos / 1000).append("us");
+            sb.append(", buckets=[");
+            for (int i = 0; i < mBuckets.length; i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                sb.append(mBuckets[i]);
+            }
+            sb.append(']');
+            return sb.toString();
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeString(mScope);
+            dest.writeInt(mKey);
+            dest.writeLong(mCount);
+            dest.writeLong(mErrors);
+            dest.writeLong(mTotalNanos);
+            dest.writeLong(mMaxNanos);
+            dest.writeLongArray(mBuckets);
+        }
+
+        public static final Creator<Entry> CREATOR = new Creator<Entry>() {
+            @Override
+            public Entry createFromParcel(Parcel source) {
+                return new Entry(source);
+            }
+
+            @Override
+            public Entry[] newArray(int size) {
+                return new Entry[size];
+            }
+        };
+    }
+}
@@ -5,10 +5,23 @@ import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import me.ycdev.android.lib.common.internalapi.android.os.ServiceManagerIA;
 import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
@@ -22,11 +35,115 @@ public class SysServiceProxyNative extends Binder implements ISysServiceProxy {
     private static final String TAG = "SysServiceProxyNative";
     private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
 
-    private final HashMap<String, BinderWrapper> mCachedServices = new HashMap<>();
+    // threads of the background lookups, the others run in the binder threads
+    private static final int LOOKUP_THREADS_MAX = 4;
+    private static final long LOOKUP_THREAD_KEEP_ALIVE = 30 * 1000; // 30 seconds
+
+    public static final long DEFAULT_DRAIN_TIMEOUT = 2 * 1000; // 2 seconds
+    private static final long MAX_DRAIN_TIMEOUT = 10 * 1000; // 10 seconds
+
+    // below the lookup threads, so that one tenant cannot take all of them
+    public static final int DEFAULT_TENANT_LOOKUP_QUOTA = LOOKUP_THREADS_MAX / 2;
+
+    // shared by the host and its tenants in the shared daemon
+    private final ServiceCache mCachedServices;
+    private final MissingServiceCache mMissingServices;
+    private final MissingServiceCache mCheckMisses;
+    // in-flight lookups, one for each service name
+    private final ConcurrentHashMap<String, FutureTask<BinderWrapper>> mPendingGets;
+    private final ConcurrentHashMap<String, FutureTask<BinderWrapper>> mPendingChecks;
+    // the blocking lookups may take seconds each, keep them away from the checks
+    private final ThreadPoolExecutor mGetExecutor;
+    private final ThreadPoolExecutor mCheckExecutor;
+    // the wrapper binders are shared too, so are their transactions
+    private final DaemonStats mForwardStats;
+    private final InFlightTracker mForwardInFlight;
+
+    // the tenant's own, the owners cannot see the lookups and the statistics of each other
+    private final AtomicLong mServiceLookups = new AtomicLong();
+    private final AtomicLong mCoalescedLookups = new AtomicLong();
+    private final DaemonStats mStats;
+
+    private final InFlightTracker mInFlight = new InFlightTracker();
+    private volatile long mDrainTimeout = DEFAULT_DRAIN_TIMEOUT;
+
+    private final SysServiceProxyNative mHost; // null if not a tenant
+    private final Semaphore mLookupQuota; // null if unlimited
+    private final AtomicLong mQuotaRejections = new AtomicLong();
+    private volatile TenantHandler mTenantHandler;
+    private volatile UsageProfile mUsageProfile; // per owner
+    private final ServiceHandles mHandles = new ServiceHandles(); // per owner
+    // tell the owner that a service died, the client cannot watch the target binder
+    private final ServiceCache.OnEvictedListener mServiceDeathNotifier =
+            new ServiceCache.OnEvictedListener() {
+        @Override
+        public void onEvicted(String name, BinderWrapper service) {
+            if (!service.getTarget().isBinderAlive()) {
+                notifyServiceDied(name);
+            }
+        }
+    };
 
     private int mOwnerUid;
     private int mSspVersion;
 
+    private volatile LifecycleListener mLifecycleListener;
+    private IBinder mOwnerToken;
+    private final IBinder.DeathRecipient mOwnerDeathRecipient = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            if (DEBUG) LibLogger.d(TAG, "owner token died");
+            synchronized (SysServiceProxyNative.this) {
+                mOwnerToken = null;
+            }
+            LifecycleListener listener = mLifecycleListener;
+            if (listener != null) {
+                listener.onOwnerDied();
+            }
+        }
+    };
+
+    private IBinder mStandby;
+    private final IBinder.DeathRecipient mStandbyDeathRecipient = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            if (DEBUG) LibLogger.d(TAG, "standby died");
+            synchronized (SysServiceProxyNative.this) {
+                mStandby = null;
+            }
+        }
+    };
+
+    public interface LifecycleListener {
+        /**
+         * Invoked when someone claims this binder was replaced in the service manager.
+         */
+        void onReplaced();
+
+        /**
+         * Invoked when the token attached by the owner died.
+         */
+        void onOwnerDied();
+
+        /**
+         * Invoked when the owner asked to shut down. New lookups are rejected already,
+         * and the daemon should invoke {@link #drain()} before quitting.
+         */
+        void onShutdown();
+    }
+
+    /**
+     * Implemented by the shared daemon to host the tenants.
+     */
+    public interface TenantHandler {
+        /**
+         * Invoked in a binder thread when a root launcher asks to add a tenant.
+         * @return The pid of the shared daemon, or 0 if rejected
+         */
+        int onAddTenant(int ownerUid, String pkgName, int sspVersion,
+                @Nullable String usageProfilePath);
+    }
+
     /**
      * Cast a Binder object into a service manager interface, generating
      * a proxy if needed.
@@ -46,9 +163,163 @@ public class SysServiceProxyNative extends Binder implements ISysServiceProxy {
     }
 
     public SysServiceProxyNative(int ownerUid, int sspVersion) {
+        this(ownerUid, sspVersion, ServiceCache.DEFAULT_MAX_SIZE,
+                ServiceCache.DEFAULT_IDLE_TIMEOUT, TransactionTraceRing.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param cacheMaxSize Max count of the cached services
+     * @param cacheIdleTimeout In milliseconds. Cached services not used in this time
+     *                         will be removed from the cache.
+     * @param traceCapacity Count of the forwarded transactions kept for dump
+     */
+    public SysServiceProxyNative(int ownerUid, int sspVersion, int cacheMaxSize,
+            long cacheIdleTimeout, int traceCapacity) {
+        attachInterface(this, SSP_DESCRIPTOR);
+        mOwnerUid = ownerUid;
+        mSspVersion = sspVersion;
+        mHost = null;
+        mLookupQuota = null;
+        mCachedServices = new ServiceCache(cacheMaxSize, cacheIdleTimeout);
+        mMissingServices = new MissingServiceCache(MissingServiceCache.DEFAULT_TTL);
+        mCheckMisses = new MissingServiceCache(MissingServiceCache.DEFAULT_CHECK_TTL);
+        mPendingGets = new ConcurrentHashMap<>();
+        mPendingChecks = new ConcurrentHashMap<>();
+        mStats = new DaemonStats(traceCapacity);
+        mForwardStats = mStats;
+        mForwardInFlight = mInFlight;
+        mCachedServices.addOnEvictedListener(mHandles);
+        mCachedServices.addOnEvictedListener(mServiceDeathNotifier);
+
+        mGetExecutor = newLookupExecutor("ssp-get-");
+        mCheckExecutor = newLookupExecutor("ssp-check-");
+    }
+
+    /**
+     * Create a tenant of the shared daemon. The tenant checks the caller against its own
+     * owner, but shares the service cache and the lookups of the host. The statistics
+     * are kept by each tenant, only for its owner.
+     * @param lookupQuota Max count of the concurrent lookups of this tenant,
+     *                    so that it cannot use up the binder threads. Zero means unlimited.
+     */
+    public SysServiceProxyNative(int ownerUid, int sspVersion,
+            @NonNull SysServiceProxyNative host, int lookupQuota) {
         attachInterface(this, SSP_DESCRIPTOR);
         mOwnerUid = ownerUid;
         mSspVersion = sspVersion;
+        mHost = host;
+        mLookupQuota = lookupQuota > 0 ? new Semaphore(lookupQuota) : null;
+        mCachedServices = host.mCachedServices;
+        mMissingServices = host.mMissingServices;
+        mCheckMisses = host.mCheckMisses;
+        mPendingGets = host.mPendingGets;
+        mPendingChecks = host.mPendingChecks;
+        mGetExecutor = host.mGetExecutor;
+        mCheckExecutor = host.mCheckExecutor;
+        mForwardStats = host.mForwardStats;
+        mStats = mForwardStats.addTenantStats(ownerUid);
+        mForwardInFlight = host.mForwardInFlight;
+        mCachedServices.addOnEvictedListener(mHandles);
+        mCachedServices.addOnEvictedListener(mServiceDeathNotifier);
+    }
+
+    private static ThreadPoolExecutor newLookupExecutor(final String threadNamePrefix) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(LOOKUP_THREADS_MAX,
+                LOOKUP_THREADS_MAX, LOOKUP_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, threadNamePrefix + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Set how long the missing services will be remembered.
+     * @param ttl In milliseconds. Zero or negative value disables it.
+     */
+    public void setMissingServiceTtl(long ttl) {
+        mMissingServices.setTtl(ttl);
+    }
+
+    /**
+     * Set how long the misses of the checks will be remembered.
+     * @param ttl In milliseconds. Zero or negative value disables it.
+     */
+    public void setCheckMissTtl(long ttl) {
+        mCheckMisses.setTtl(ttl);
+    }
+
+    public void setLifecycleListener(@Nullable LifecycleListener listener) {
+        mLifecycleListener = listener;
+    }
+
+    /**
+     * Only the host of the shared daemon needs it.
+     */
+    public void setTenantHandler(@Nullable TenantHandler handler) {
+        mTenantHandler = handler;
+    }
+
+    /**
+     * Record the services requested by the owner into the file, see {@link #prefetch(int)}.
+     * Not supported before Android 5.0, the file cannot be written safely there.
+     */
+    public void setUsageProfile(@NonNull File file) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            if (DEBUG) LibLogger.d(TAG, "usage profile not supported");
+            return;
+        }
+        UsageProfile profile = new UsageProfile(file, mOwnerUid);
+        profile.load();
+        mUsageProfile = profile;
+    }
+
+    /**
+     * Save the usage profile now, instead of waiting for the delayed save.
+     */
+    public void saveUsageProfile() {
+        UsageProfile profile = mUsageProfile;
+        if (profile != null) {
+            profile.save();
+        }
+    }
+
+    /**
+     * Look up and cache the most used services in the usage profile in background,
+     * so that the first requests after the daemon started can hit the cache.
+     */
+    public void prefetch(int count) {
+        UsageProfile profile = mUsageProfile;
+        if (profile == null || count <= 0) {
+            return;
+        }
+        String[] names = profile.getTopNames(count);
+        int started = 0;
+        for (String name : names) {
+            if (getCachedService(name) == null && !isMissing(name, false)) {
+                startLookup(name, false, false); // no wait
+                started++;
+            }
+        }
+        if (DEBUG) LibLogger.d(TAG, "prefetch {} of {} services", started, names.length);
+    }
+
+    private void recordUsage(String name) {
+        UsageProfile profile = mUsageProfile;
+        if (profile != null) {
+            profile.record(name);
+        }
+    }
+
+    public boolean isTenant() {
+        return mHost != null;
     }
 
     @Override
@@ -59,7 +330,21 @@ public class SysServiceProxyNative extends Binder implements ISysServiceProxy {
     @Override
     public boolean onTransact(int code, @NonNull Parcel data, @NonNull Parcel reply,
             int flags) throws RemoteException {
-        if (DEBUG) LibLogger.d(TAG, "onTransact: " + code + ", caller uid: " + getCallingUid());
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean handled = dispatchTransaction(code, data, reply, flags);
+            failed = false;
+            return handled;
+        } finally {
+            mStats.recordSspTransaction(code, getCallingUid(), System.nanoTime() - startTime,
+                    failed);
+        }
+    }
+
+    private boolean dispatchTransaction(int code, @NonNull Parcel data, @NonNull Parcel reply,
+            int flags) throws RemoteException {
+        if (DEBUG) LibLogger.d(TAG, "onTransact: {}, caller uid: {}", code, getCallingUid());
         checkCallerPermission(code);
         switch (code) {
             case GET_SSP_VERSION_TRANSACTION: {
@@ -73,18 +358,71 @@ public class SysServiceProxyNative extends Binder implements ISysServiceProxy {
             case GET_SERVICE_TRANSACTION: {
                 data.enforceInterface(ISysServiceProxy.SSP_DESCRIPTOR);
                 String name = data.readString();
-                IBinder service = getService(name);
+                // the timeout is optional
+                long timeoutMillis = data.dataAvail() >= 8 ? data.readLong() : 0;
+                BinderWrapper service = lookupService(name, true, timeoutMillis);
                 reply.writeNoException();
-                reply.writeStrongBinder(service);
+                writeService(reply, service);
+                writeLookupStatus(reply);
+                writeHandle(reply, name, service);
                 return true;
             }
 
             case CHECK_SERVICE_TRANSACTION: {
                 data.enforceInterface(ISysServiceProxy.SSP_DESCRIPTOR);
                 String name = data.readString();
-                IBinder service = checkService(name);
+                BinderWrapper service = lookupService(name, false, 0);
+                reply.writeNoException();
+                writeService(reply, service);
+                writeLookupStatus(reply);
+                writeHandle(reply, name, service);
+                return true;
+            }
+
+            case GET_SERVICE_BY_HANDLE_TRANSACTION:
+            case CHECK_SERVICE_BY_HANDLE_TRANSACTION: {
+                enforceCompactToken(data);
+                int handle = data.readInt();
+                BinderWrapper service = lookupServiceByHandle(handle,
+                        code == GET_SERVICE_BY_HANDLE_TRANSACTION);
+                reply.writeNoException();
+                writeService(reply, service);
+                writeLookupStatus(reply);
+                return true;
+            }
+
+            case REGISTER_NAME_TRANSACTION: {
+                data.enforceInterface(ISysServiceProxy.SSP_DESCRIPTOR);
+                String name = data.readString();
+                int handle = registerName(name);
+                reply.writeNoException();
+                reply.writeInt(handle);
+                return true;
+            }
+
+            case GET_SERVICES_TRANSACTION: {
+                data.enforceInterface(ISysServiceProxy.SSP_DESCRIPTOR);
+                String[] names = data.createStringArray();
                 reply.writeNoException();
-                reply.writeStrongBinder(service);
+                if (names == null) {
+                    reply.writeInt(-1);
+                    return true;
+                }
+                BinderWrapper[] services = lookupServices(names);
+                reply.writeInt(services.length);
+                for (BinderWrapper service : services) {
+                    writeService(reply, service);
+                }
+                writeLookupStatus(reply);
+                return true;
+            }
+
+            case GET_STATS_TRANSACTION: {
+                data.enforceInterface(ISysServiceProxy.SSP_DESCRIPTOR);
+                SspStats stats = getStats();
+                reply.writeNoException();
+                reply.writeInt(1);
+                stats.writeToParcel(reply, Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
                 return true;
             }
 
@@ -104,10 +442,93 @@ public class SysServiceProxyNative extends Binder implements ISysServiceProxy {
                 reply.writeStringArray(list);
                 return true;
             }
+
+            case NOTIFY_REPLACED_TRANSACTION: {
+                data.enforceInterface(ISysServiceProxy.SSP_DESCRIPTOR);
+                notifyReplaced();
+                return true;
+            }
+
+            case ATTACH_OWNER_TRANSACTION: {
+                data.enforceInterface(ISysServiceProxy.SSP_DESCRIPTOR);
+                IBinder token = data.readStrongBinder();
+                attachOwner(token);
+                reply.writeNoException();
+                return true;
+            }
+
+            case GET_CACHED_NAMES_TRANSACTION: {
+                data.enforceInterface(ISysServiceProxy.SSP_DESCRIPTOR);
+                String[] names = getCachedServiceNames();
+                reply.writeNoException();
+                reply.writeStringArray(names);
+                return true;
+            }
+
+            case REGISTER_STANDBY_TRANSACTION: {
+                data.enforceInterface(ISysServiceProxy.SSP_DESCRIPTOR);
+                IBinder standby = data.readStrongBinder();
+                boolean result = registerStandby(standby);
+                reply.writeNoException();
+                reply.writeInt(result ? 1 : 0);
+                return true;
+            }
+
+            case DISMISS_STANDBY_TRANSACTION: {
+                data.enforceInterface(ISysServiceProxy.SSP_DESCRIPTOR);
+                dismissStandby();
+                reply.writeNoException();
+                return true;
+            }
+
+            case SHUTDOWN_TRANSACTION: {
+                data.enforceInterface(ISysServiceProxy.SSP_DESCRIPTOR);
+                long drainTimeoutMillis = data.readLong();
+                int result = shutdown(drainTimeoutMillis);
+                reply.writeNoException();
+                reply.writeInt(result);
+                return true;
+            }
+
+            case ADD_TENANT_TRANSACTION: {
+                data.enforceInterface(ISysServiceProxy.SSP_DESCRIPTOR);
+                int ownerUid = data.readInt();
+                String pkgName = data.readString();
+                int sspVersion = data.readInt();
+                // the usage profile is optional
+                String usageProfilePath = data.dataAvail() > 0 ? data.readString() : null;
+                int pid = addTenant(ownerUid, pkgName, sspVersion, usageProfilePath);
+                reply.writeNoException();
+                reply.writeInt(pid);
+                return true;
+            }
         }
         return super.onTransact(code, data, reply, flags);
     }
 
+    /**
+     * Write the wrapper binder, followed by a null binder where v9 daemons wrote the target
+     * binder. The target is not exposed, the owner may be not allowed to find it by SELinux.
+     * The owner is told through its token when the target died instead, see
+     * {@link #mServiceDeathNotifier}.
+     */
+    private static void writeService(Parcel reply, @Nullable BinderWrapper service) {
+        reply.writeStrongBinder(service);
+        reply.writeStrongBinder(null);
+    }
+
+    private void writeLookupStatus(Parcel reply) {
+        reply.writeInt(mInFlight.isClosed() ? LOOKUP_STATUS_CLOSED : LOOKUP_STATUS_OK);
+    }
+
+    /**
+     * Hand out the handle with the first lookup, so that no extra transaction is needed
+     * for {@link #registerName(String)}. Not registered for the missing services.
+     */
+    private void writeHandle(Parcel reply, String name, @Nullable BinderWrapper service) {
+        reply.writeInt(service != null ? registerName(name) : -1);
+    }
+
     private void checkCallerPermission(int code) {
         int uid = getCallingUid();
         switch (code) {
@@ -115,13 +536,31 @@ public class SysServiceProxyNative extends Binder implements ISysServiceProxy {
             case GET_SERVICE_TRANSACTION:
             case CHECK_SERVICE_TRANSACTION:
             case ADD_SERVICE_TRANSACTION:
-            case LIST_SERVICES_TRANSACTION: {
+            case LIST_SERVICES_TRANSACTION:
+            case GET_SERVICES_TRANSACTION:
+            case GET_STATS_TRANSACTION:
+            case ATTACH_OWNER_TRANSACTION:
+            case SHUTDOWN_TRANSACTION:
+            case DISMISS_STANDBY_TRANSACTION:
+            case REGISTER_NAME_TRANSACTION:
+            case GET_SERVICE_BY_HANDLE_TRANSACTION:
+            case CHECK_SERVICE_BY_HANDLE_TRANSACTION: {
                 if (uid != mOwnerUid) {
                     throw new SecurityException("Unknown caller uid: " + uid + ", != " + mOwnerUid);
                 }
                 break;
             }
 
+            // only from the daemons, which run as root or system
+            case GET_CACHED_NAMES_TRANSACTION:
+            case REGISTER_STANDBY_TRANSACTION:
+            case ADD_TENANT_TRANSACTION: {
+                if (uid != Process.SYSTEM_UID && uid != 0 /* root */) {
+                    throw new SecurityException("Unknown caller uid: " + uid);
+                }
+                break;
+            }
+
             default: {
                 if (uid != Process.SYSTEM_UID && uid != 0 /* root */ && uid != 2000 /* SHELL UID */) {
                     throw new SecurityException("Unknown caller uid: " + uid + ", != " + mOwnerUid);
@@ -133,163 +572,859 @@ public class SysServiceProxyNative extends Binder implements ISysServiceProxy {
 
     @Override
     public int getSspVersion() {
-        return mSspVersion;
+        // a closed tenant stays in the service manager until the shared daemon quits,
+        // let the clients see it as a bad daemon, so that they start a new one
+        return mInFlight.isClosed() ? 0 : mSspVersion;
     }
 
     @Override
-    public IBinder getService(String name) {
-        BinderWrapper binder;
-        synchronized (mCachedServices) {
-            binder = mCachedServices.get(name);
-            if (binder == null || !binder.isBinderAlive()) {
-                IBinder targetBinder = ServiceManagerIA.getService(name); // #getService()
-                if (targetBinder == null) {
-                    binder = null;
-                } else {
-                    binder = new BinderWrapper(targetBinder);
-                    mCachedServices.put(name, binder);
-                }
-            }
-        }
-        return binder;
+    public boolean isClosed() {
+        return mInFlight.isClosed();
     }
 
     @Override
-    public IBinder checkService(String name) {
-        BinderWrapper binder;
-        synchronized (mCachedServices) {
-            binder = mCachedServices.get(name);
-            if (binder == null || !binder.isBinderAlive()) {
-                IBinder targetBinder = ServiceManagerIA.checkService(name); // #checkService()
-                if (targetBinder == null) {
-                    binder = null;
-                } else {
-                    binder = new BinderWrapper(targetBinder);
-                    mCachedServices.put(name, binder);
-                }
-            }
-        }
-        return binder;
+    public IBinder getService(String name) {
+        return lookupService(name, true, 0);
     }
 
     @Override
-    public void addService(String name, IBinder service) {
-        ServiceManagerIA.addService(name, service);
+    public IBinder getService(String name, long timeoutMillis) {
+        return lookupService(name, true, timeoutMillis);
     }
 
     @Override
-    public String[] listServices() {
-        return ServiceManagerIA.listServices();
+    public IBinder checkService(String name) {
+        return lookupService(name, false, 0);
     }
 
     @Override
-    protected void dump(FileDescriptor fd, PrintWriter fout, String[] args) {
-        super.dump(fd, fout, args);
-        fout.println("Service: " + SSP_DESCRIPTOR);
-        fout.println("Version: " + mSspVersion);
-        fout.println("Owner: " + mOwnerUid);
-        fout.println("Caches: ");
-        synchronized (mCachedServices) {
-            for (Map.Entry<String, BinderWrapper> entry : mCachedServices.entrySet()) {
-                fout.println("\t" + entry.getKey() + ": " + entry.getValue().isBinderAlive());
-            }
-        }
+    public IBinder[] getServices(String[] names) {
+        return lookupServices(names);
     }
-}
-
-class BinderWrapper extends Binder {
-    private IBinder mTarget;
 
-    public BinderWrapper(@NonNull IBinder target) {
-        mTarget = target;
+    private static void enforceCompactToken(Parcel data) {
+        if (data.readInt() != SSP_COMPACT_TOKEN) {
+            throw new SecurityException("Binder invocation to an incorrect interface");
+        }
     }
 
     @Override
-    public boolean isBinderAlive() {
-        return super.isBinderAlive() && mTarget.isBinderAlive();
+    public int registerName(String name) {
+        if (name == null) {
+            return -1;
+        }
+        int handle = mHandles.register(name);
+        if (DEBUG) LibLogger.d(TAG, "register name: {}, handle: {}", name, handle);
+        return handle;
     }
 
     @Override
-    protected boolean onTransact(int code, @NonNull Parcel data, @NonNull Parcel reply, int flags)
-            throws RemoteException {
-        return mTarget.transact(code, data, reply, flags);
-    }
-}
-
-class SysServiceProxyProxy implements ISysServiceProxy {
-    private static final String TAG = "SysServiceProxyProxy";
-
-    private IBinder mRemote;
-
-    public SysServiceProxyProxy(IBinder remote) {
-        mRemote = remote;
+    public IBinder getServiceByHandle(int handle) {
+        return lookupServiceByHandle(handle, true);
     }
 
     @Override
-    public IBinder asBinder() {
-        return mRemote;
+    public IBinder checkServiceByHandle(int handle) {
+        return lookupServiceByHandle(handle, false);
     }
 
-    @Override
-    public int getSspVersion() {
-        Parcel data = Parcel.obtain();
-        Parcel reply = Parcel.obtain();
+    private BinderWrapper lookupServiceByHandle(int handle, boolean blocking) {
+        if (!enterLookup()) {
+            return null;
+        }
+        String name;
+        BinderWrapper service;
         try {
-            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
-            mRemote.transact(GET_SSP_VERSION_TRANSACTION, data, reply, 0);
-            reply.readException();
-            return reply.readInt();
-        } catch (RemoteException e) {
-            LibLogger.w(TAG, "ssproxy died?", e);
+            name = mHandles.getName(handle);
+            if (name == null) {
+                if (DEBUG) LibLogger.w(TAG, "unknown handle: " + handle);
+                return null;
+            }
+            service = mHandles.getService(handle); // the fast path
+            if (service == null) {
+                service = doLookupService(name, blocking, 0);
+                if (service != null) {
+                    mHandles.setService(handle, service);
+                }
+            }
         } finally {
-            reply.recycle();
-            data.recycle();
+            exitLookup();
         }
-        return -1;
+        if (service != null) {
+            recordUsage(name);
+        }
+        return service;
     }
 
-    @Override
-    public IBinder getService(String name) {
-        Parcel data = Parcel.obtain();
-        Parcel reply = Parcel.obtain();
+    private BinderWrapper[] lookupServices(String[] names) {
+        BinderWrapper[] services = new BinderWrapper[names.length];
+        if (!enterLookup()) {
+            return services;
+        }
         try {
-            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
-            data.writeString(name);
-            mRemote.transact(GET_SERVICE_TRANSACTION, data, reply, 0);
-            reply.readException();
-            return reply.readStrongBinder();
-        } catch (RemoteException e) {
-            LibLogger.w(TAG, "ssproxy died?", e);
+            startAndWaitLookups(names, services);
         } finally {
-            reply.recycle();
-            data.recycle();
+            exitLookup();
         }
-        return null;
+        for (int i = 0; i < names.length; i++) {
+            if (services[i] != null) {
+                recordUsage(names[i]);
+            }
+        }
+        return services;
     }
 
-    @Override
-    public IBinder checkService(String name) {
-        Parcel data = Parcel.obtain();
-        Parcel reply = Parcel.obtain();
-        try {
-            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
-            data.writeString(name);
-            mRemote.transact(CHECK_SERVICE_TRANSACTION, data, reply, 0);
-            reply.readException();
-            return reply.readStrongBinder();
-        } catch (RemoteException e) {
-            LibLogger.w(TAG, "ssproxy died?", e);
-        } finally {
-            reply.recycle();
-            data.recycle();
+    /**
+     * @return false if the lookup should be rejected, because of shutting down
+     *         or out of the tenant quota
+     */
+    private boolean enterLookup() {
+        if (!mInFlight.enter()) {
+            if (DEBUG) LibLogger.d(TAG, "shutting down, lookup rejected");
+            return false;
         }
-        return null;
+        // don't block the binder thread, the waiting ones would use up the binder threads too
+        if (mLookupQuota != null) {
+            if (!mLookupQuota.tryAcquire()) {
+                if (DEBUG) LibLogger.w(TAG, "out of lookup quota, owner: " + mOwnerUid);
+                mQuotaRejections.incrementAndGet();
+                mInFlight.exit();
+                return false;
+            }
+        }
+        return true;
     }
 
-    @Override
-    public void addService(String name, IBinder service) {
-        Parcel data = Parcel.obtain();
-        Parcel reply = Parcel.obtain();
+    private void exitLookup() {
+        if (mLookupQuota != null) {
+            mLookupQuota.release();
+        }
+        mInFlight.exit();
+    }
+
+    private void startAndWaitLookups(String[] names, BinderWrapper[] services) {
+        // start all the lookups first, then they can run in parallel
+        ArrayList<Future<BinderWrapper>> tasks = new ArrayList<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            services[i] = getCachedService(names[i]);
+            boolean needLookup = services[i] == null && !mMissingServices.isMissing(names[i]);
+            tasks.add(needLookup ? startLookup(names[i], true, false) : null);
+        }
+        for (int i = 0; i < names.length; i++) {
+            Future<BinderWrapper> task = tasks.get(i);
+            if (task != null) {
+                services[i] = waitLookup(names[i], task, 0);
+            }
+        }
+    }
+
+    private BinderWrapper lookupService(String name, boolean blocking, long timeoutMillis) {
+        if (!enterLookup()) {
+            return null;
+        }
+        BinderWrapper service;
+        try {
+            service = doLookupService(name, blocking, timeoutMillis);
+        } finally {
+            exitLookup();
+        }
+        if (service != null) {
+            recordUsage(name);
+        }
+        return service;
+    }
+
+    private BinderWrapper doLookupService(String name, boolean blocking, long timeoutMillis) {
+        BinderWrapper binder = getCachedService(name);
+        if (binder != null) {
+            return binder;
+        }
+        if (isMissing(name, blocking)) {
+            return null;
+        }
+        // run it in this binder thread unless it may time out
+        return waitLookup(name, startLookup(name, blocking, timeoutMillis <= 0), timeoutMillis);
+    }
+
+    private boolean isMissing(String name, boolean blocking) {
+        return mMissingServices.isMissing(name) || (!blocking && mCheckMisses.isMissing(name));
+    }
+
+    @Nullable
+    private BinderWrapper getCachedService(String name) {
+        return mCachedServices.get(name);
+    }
+
+    /**
+     * Look up the services and cache them before this binder is published.
+     * The missing services are skipped, and it waits at most {@code timeoutMillis}
+     * milliseconds in total.
+     */
+    public void warmUp(String[] names, long timeoutMillis) {
+        ArrayList<String> lookupNames = new ArrayList<>(names.length);
+        ArrayList<Future<BinderWrapper>> tasks = new ArrayList<>(names.length);
+        for (String name : names) {
+            if (getCachedService(name) == null) {
+                lookupNames.add(name);
+                tasks.add(startLookup(name, false, false));
+            }
+        }
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        for (int i = 0; i < tasks.size(); i++) {
+            long waitTime = deadline - SystemClock.elapsedRealtime();
+            if (waitTime <= 0) {
+                if (DEBUG) LibLogger.d(TAG, "warm up timeout");
+                break;
+            }
+            waitLookup(lookupNames.get(i), tasks.get(i), waitTime);
+        }
+        if (DEBUG) LibLogger.d(TAG, "warmed up, cached: " + mCachedServices.size());
+    }
+
+    /**
+     * Only one lookup of the service manager will be performed for the same name,
+     * and the concurrent requesters share its result.
+     * Lookups of different names don't block each other.
+     * @param inline Run the lookup in the caller thread if it's the first requester,
+     *               otherwise in the background executors
+     */
+    @NonNull
+    private Future<BinderWrapper> startLookup(final String name, final boolean blocking,
+            boolean inline) {
+        final ConcurrentHashMap<String, FutureTask<BinderWrapper>> pendingLookups =
+                blocking ? mPendingGets : mPendingChecks;
+        FutureTask<BinderWrapper> task = pendingLookups.get(name);
+        if (task == null) {
+            FutureTask<BinderWrapper> newTask = new FutureTask<BinderWrapper>(
+                    new Callable<BinderWrapper>() {
+                        @Override
+                        public BinderWrapper call() {
+                            return queryServiceManager(name, blocking);
+                        }
+                    }) {
+                @Override
+                protected void done() {
+                    pendingLookups.remove(name, this);
+                }
+            };
+            task = pendingLookups.putIfAbsent(name, newTask);
+            if (task == null) {
+                if (inline) {
+                    newTask.run();
+                } else {
+                    (blocking ? mGetExecutor : mCheckExecutor).execute(newTask);
+                }
+                return newTask;
+            }
+        }
+        mCoalescedLookups.incrementAndGet();
+        return task;
+    }
+
+    /**
+     * Wait for the lookup result. The lookup keeps running even if the caller timed out,
+     * and the result will be cached for later requests.
+     * @param timeoutMillis Zero or negative value means no timeout.
+     */
+    @Nullable
+    private BinderWrapper waitLookup(String name, Future<BinderWrapper> task, long timeoutMillis) {
+        try {
+            if (timeoutMillis > 0) {
+                return task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            return task.get();
+        } catch (TimeoutException e) {
+            if (DEBUG) LibLogger.d(TAG, "timeout when looking up " + name);
+        } catch (InterruptedException e) {
+            if (DEBUG) LibLogger.w(TAG, "interrupted when looking up " + name);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LibLogger.w(TAG, "failed to look up " + name, e.getCause());
+        }
+        return null;
+    }
+
+    private BinderWrapper queryServiceManager(String name, boolean blocking) {
+        mServiceLookups.incrementAndGet();
+        IBinder targetBinder;
+        if (blocking) {
+            targetBinder = ServiceManagerIA.getService(name); // #getService()
+        } else {
+            targetBinder = ServiceManagerIA.checkService(name); // #checkService()
+        }
+        if (targetBinder == null) {
+            if (blocking) {
+                mMissingServices.markMissing(name);
+            } else {
+                // the service may be published in a moment, only remembered shortly
+                mCheckMisses.markMissing(name);
+            }
+            return null;
+        }
+        BinderWrapper binder = new BinderWrapper(name, targetBinder, mForwardStats,
+                mForwardInFlight);
+        mCachedServices.put(name, binder);
+        return binder;
+    }
+
+    @Override
+    public SspStats getStats() {
+        return mStats.snapshot(mServiceLookups.get(), mCoalescedLookups.get());
+    }
+
+    @Override
+    public void addService(String name, IBinder service) {
+        ServiceManagerIA.addService(name, service);
+        mCachedServices.remove(name);
+        mMissingServices.remove(name);
+        mCheckMisses.remove(name);
+    }
+
+    @Override
+    public String[] listServices() {
+        return ServiceManagerIA.listServices();
+    }
+
+    @Override
+    public void notifyReplaced() {
+        if (DEBUG) LibLogger.d(TAG, "replaced, caller uid: " + getCallingUid());
+        LifecycleListener listener = mLifecycleListener;
+        if (listener != null) {
+            listener.onReplaced();
+        }
+    }
+
+    private void notifyServiceDied(String name) {
+        IBinder token;
+        synchronized (this) {
+            token = mOwnerToken;
+        }
+        if (token == null) {
+            return;
+        }
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(OwnerToken.DESCRIPTOR);
+            data.writeString(name);
+            token.transact(OwnerToken.SERVICE_DIED_TRANSACTION, data, null, FLAG_ONEWAY);
+        } catch (RemoteException e) {
+            if (DEBUG) LibLogger.d(TAG, "owner died? " + e);
+        } finally {
+            data.recycle();
+        }
+    }
+
+    @Override
+    public synchronized void attachOwner(IBinder token) {
+        if (token == null || token == mOwnerToken) {
+            return;
+        }
+        if (mOwnerToken != null) {
+            mOwnerToken.unlinkToDeath(mOwnerDeathRecipient, 0);
+            mOwnerToken = null;
+        }
+        try {
+            token.linkToDeath(mOwnerDeathRecipient, 0);
+            mOwnerToken = token;
+        } catch (RemoteException e) {
+            // the owner died already
+            mOwnerDeathRecipient.binderDied();
+        }
+    }
+
+    @Override
+    public String[] getCachedServiceNames() {
+        return mCachedServices.getNames();
+    }
+
+    @Override
+    public boolean registerStandby(IBinder standby) {
+        if (standby == null) {
+            return false;
+        }
+        IBinder oldStandby;
+        synchronized (this) {
+            oldStandby = mStandby;
+            if (oldStandby == standby) {
+                return true;
+            }
+            try {
+                standby.linkToDeath(mStandbyDeathRecipient, 0);
+            } catch (RemoteException e) {
+                return false;
+            }
+            if (oldStandby != null) {
+                oldStandby.unlinkToDeath(mStandbyDeathRecipient, 0);
+            }
+            mStandby = standby;
+        }
+        if (oldStandby != null) {
+            // only one standby daemon is needed
+            dismissStandby(oldStandby);
+        }
+        return true;
+    }
+
+    /**
+     * Tell the standby daemon to quit, invoked when this daemon quits gracefully,
+     * or by the owner which doesn't want the standby daemon any more.
+     */
+    @Override
+    public void dismissStandby() {
+        IBinder standby;
+        synchronized (this) {
+            standby = mStandby;
+            if (standby == null) {
+                return;
+            }
+            standby.unlinkToDeath(mStandbyDeathRecipient, 0);
+            mStandby = null;
+        }
+        dismissStandby(standby);
+    }
+
+    private static void dismissStandby(IBinder standby) {
+        ISysServiceProxy standbyService = asInterface(standby);
+        if (standbyService != null) {
+            standbyService.notifyReplaced();
+        }
+    }
+
+    @Override
+    public int shutdown(long drainTimeoutMillis) {
+        if (DEBUG) LibLogger.d(TAG, "shutdown, drain timeout: " + drainTimeoutMillis);
+        if (drainTimeoutMillis >= 0) {
+            mDrainTimeout = Math.min(drainTimeoutMillis, MAX_DRAIN_TIMEOUT);
+        }
+        close();
+        LifecycleListener listener = mLifecycleListener;
+        if (listener != null) {
+            listener.onShutdown();
+        }
+        return isTenant() ? SHUTDOWN_DETACHED : SHUTDOWN_EXITING;
+    }
+
+    /**
+     * Reject new lookups from now on, without notifying the lifecycle listener.
+     */
+    public void close() {
+        mInFlight.close();
+        if (mHost != null) {
+            // the cache is shared with the host and the other tenants
+            mCachedServices.removeOnEvictedListener(mHandles);
+            mCachedServices.removeOnEvictedListener(mServiceDeathNotifier);
+            mForwardStats.removeTenantStats(mStats);
+        }
+    }
+
+    @Override
+    public int addTenant(int ownerUid, String pkgName, int sspVersion,
+            String usageProfilePath) {
+        TenantHandler handler = mTenantHandler;
+        if (handler == null) {
+            if (DEBUG) LibLogger.d(TAG, "not a shared daemon");
+            return 0;
+        }
+        return handler.onAddTenant(ownerUid, pkgName, sspVersion, usageProfilePath);
+    }
+
+    /**
+     * Wait for the in-flight transactions to finish. New lookups are still served
+     * unless {@link #close()} or {@link #shutdown(long)} was invoked. The daemon closes
+     * itself before draining, so that the clients get null and switch to the new daemon
+     * (if replaced), instead of the wrappers which will die with this one soon.
+     * @return false if timed out
+     */
+    public boolean drain() {
+        boolean drained = mInFlight.drain(mDrainTimeout);
+        if (DEBUG) LibLogger.d(TAG, "drained: " + drained + ", in-flight: " + mInFlight.getCount());
+        return drained;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter fout, String[] args) {
+        super.dump(fd, fout, args);
+        fout.println("Service: " + SSP_DESCRIPTOR);
+        fout.println("Version: " + mSspVersion);
+        fout.println("Owner: " + mOwnerUid);
+        if (isTenant()) {
+            fout.println("Tenant of the shared daemon, lookup quota: "
+                    + (mLookupQuota != null ? mLookupQuota.availablePermits() + " available"
+                            : "unlimited")
+                    + ", rejected: " + mQuotaRejections.get());
+        } else if (mTenantHandler != null) {
+            fout.println("Host of the shared daemon");
+        }
+        synchronized (this) {
+            fout.println("Owner token attached: " + (mOwnerToken != null));
+            fout.println("Standby: " + (mStandby != null));
+        }
+        mCachedServices.dump(fout);
+        fout.println("Service handles: " + mHandles.size());
+        fout.println("Missing services: " + mMissingServices.size()
+                + ", TTL " + mMissingServices.getTtl() + "ms; check misses: "
+                + mCheckMisses.size() + ", TTL " + mCheckMisses.getTtl() + "ms");
+        fout.println("Pending lookups: " + (mPendingGets.size() + mPendingChecks.size()));
+        fout.println("In-flight: " + mInFlight.getCount() + ", closed: " + mInFlight.isClosed());
+        UsageProfile profile = mUsageProfile;
+        if (profile != null) {
+            profile.dump(fout);
+        }
+        getStats().dump(fout);
+        mStats.dumpTraces(fout);
+        LibLogger.dumpRingBuffer(fout);
+    }
+}
+
+class BinderWrapper extends Binder {
+    private String mName;
+    private IBinder mTarget;
+    private DaemonStats mDaemonStats;
+    private TransactionStats mStats;
+    private int mTraceNameId;
+    private InFlightTracker mInFlight;
+    // by the lookups bypassing the cache, see ServiceHandles
+    private volatile long mLastAccessTime;
+
+    public BinderWrapper(@NonNull String name, @NonNull IBinder target,
+            @NonNull DaemonStats daemonStats, @NonNull InFlightTracker inFlight) {
+        mName = name;
+        mTarget = target;
+        mDaemonStats = daemonStats;
+        mInFlight = inFlight;
+        mStats = daemonStats.getServiceStats(name);
+        mTraceNameId = daemonStats.getTraceNameId(name);
+    }
+
+    @NonNull
+    public IBinder getTarget() {
+        return mTarget;
+    }
+
+    public void touch() {
+        mLastAccessTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return when {@link #touch()} was invoked last time, or 0 if never
+     */
+    public long getLastAccessTime() {
+        return mLastAccessTime;
+    }
+
+    @Override
+    public boolean isBinderAlive() {
+        return super.isBinderAlive() && mTarget.isBinderAlive();
+    }
+
+    @Override
+    protected boolean onTransact(int code, @NonNull Parcel data, @NonNull Parcel reply, int flags)
+            throws RemoteException {
+        long startTime = System.nanoTime();
+        int dataSize = data.dataSize();
+        boolean failed = true;
+        // the clients hold this binder already, so keep forwarding even if shutting down
+        mInFlight.forceEnter();
+        try {
+            boolean handled = mTarget.transact(code, data, reply, flags);
+            failed = false;
+            return handled;
+        } finally {
+            mInFlight.exit();
+            mDaemonStats.recordServiceTransaction(mName, mStats, mTraceNameId, code, flags,
+                    getCallingUid(), getCallingPid(), dataSize,
+                    reply != null ? reply.dataSize() : 0, startTime, System.nanoTime(), failed);
+        }
+    }
+}
+
+class SysServiceProxyProxy implements ISysServiceProxy {
+    private static final String TAG = "SysServiceProxyProxy";
+    private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
+
+    private IBinder mRemote;
+
+    /**
+     * Binders got from the ssproxy daemon. The entries will be evicted
+     * when the wrapper binder (the daemon) or the target binder died.
+     */
+    private final ConcurrentHashMap<String, CachedService> mCachedServices =
+            new ConcurrentHashMap<>();
+    // handles of the service names, from the replies of the lookups by name
+    private final ConcurrentHashMap<String, Integer> mHandles = new ConcurrentHashMap<>();
+    private volatile boolean mDaemonClosed;
+    private volatile boolean mBatchUnsupported;
+
+    public SysServiceProxyProxy(IBinder remote) {
+        mRemote = remote;
+    }
+
+    @Override
+    public IBinder asBinder() {
+        return mRemote;
+    }
+
+    @Override
+    public int getSspVersion() {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
+            mRemote.transact(GET_SSP_VERSION_TRANSACTION, data, reply, 0);
+            reply.readException();
+            return reply.readInt();
+        } catch (RemoteException e) {
+            LibLogger.w(TAG, "ssproxy died?", e);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        return -1;
+    }
+
+    @Override
+    public IBinder getService(String name) {
+        return lookupService(GET_SERVICE_TRANSACTION, name, 0);
+    }
+
+    @Override
+    public IBinder getService(String name, long timeoutMillis) {
+        return lookupService(GET_SERVICE_TRANSACTION, name, timeoutMillis);
+    }
+
+    @Override
+    public IBinder checkService(String name) {
+        return lookupService(CHECK_SERVICE_TRANSACTION, name, 0);
+    }
+
+    private IBinder lookupService(int code, String name, long timeoutMillis) {
+        IBinder binder = getCachedService(name);
+        if (binder != null) {
+            return binder;
+        }
+        if (timeoutMillis <= 0) {
+            Integer handle = mHandles.get(name);
+            if (handle != null) {
+                return lookupServiceByHandle(code == GET_SERVICE_TRANSACTION
+                        ? GET_SERVICE_BY_HANDLE_TRANSACTION : CHECK_SERVICE_BY_HANDLE_TRANSACTION,
+                        name, handle);
+            }
+        }
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
+            data.writeString(name);
+            if (timeoutMillis > 0) {
+                data.writeLong(timeoutMillis);
+            }
+            mRemote.transact(code, data, reply, 0);
+            reply.readException();
+            binder = reply.readStrongBinder();
+            IBinder target = reply.dataAvail() > 0 ? reply.readStrongBinder() : null;
+            readLookupStatus(reply);
+            // no handle from the old daemons, or if the handles ran out,
+            // then keep looking up by name and try again next time
+            int handle = reply.dataAvail() >= 4 ? reply.readInt() : -1;
+            if (handle >= 0) {
+                mHandles.put(name, handle);
+            }
+            cacheService(name, binder, target);
+            return binder;
+        } catch (RemoteException e) {
+            LibLogger.w(TAG, "ssproxy died?", e);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        return null;
+    }
+
+    /**
+     * @param name The name of the handle, to cache the result. Null if unknown.
+     */
+    private IBinder lookupServiceByHandle(int code, @Nullable String name, int handle) {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInt(SSP_COMPACT_TOKEN);
+            data.writeInt(handle);
+            mRemote.transact(code, data, reply, 0);
+            reply.readException();
+            IBinder binder = reply.readStrongBinder();
+            IBinder target = reply.readStrongBinder();
+            readLookupStatus(reply);
+            if (name != null) {
+                cacheService(name, binder, target);
+            }
+            return binder;
+        } catch (RemoteException e) {
+            LibLogger.w(TAG, "ssproxy died?", e);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        return null;
+    }
+
+    @Override
+    public int registerName(String name) {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
+            data.writeString(name);
+            // the old daemons reject the unknown transactions from the apps
+            // with SecurityException, but return false for root
+            if (!mRemote.transact(REGISTER_NAME_TRANSACTION, data, reply, 0)) {
+                if (DEBUG) LibLogger.d(TAG, "service handles not supported");
+                return -1;
+            }
+            reply.readException();
+            return reply.readInt();
+        } catch (SecurityException e) {
+            if (DEBUG) LibLogger.d(TAG, "service handles not supported: " + e);
+        } catch (RemoteException e) {
+            LibLogger.w(TAG, "ssproxy died?", e);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        return -1;
+    }
+
+    @Override
+    public IBinder getServiceByHandle(int handle) {
+        return lookupServiceByHandle(GET_SERVICE_BY_HANDLE_TRANSACTION, null, handle);
+    }
+
+    @Override
+    public IBinder checkServiceByHandle(int handle) {
+        return lookupServiceByHandle(CHECK_SERVICE_BY_HANDLE_TRANSACTION, null, handle);
+    }
+
+    @Override
+    public IBinder[] getServices(String[] names) {
+        IBinder[] services = new IBinder[names.length];
+        int missingCount = 0;
+        for (int i = 0; i < names.length; i++) {
+            services[i] = getCachedService(names[i]);
+            if (services[i] == null) {
+                missingCount++;
+            }
+        }
+        if (missingCount == 0) {
+            return services;
+        }
+
+        String[] missingNames = new String[missingCount];
+        for (int i = 0, j = 0; i < names.length; i++) {
+            if (services[i] == null) {
+                missingNames[j++] = names[i];
+            }
+        }
+
+        if (!mBatchUnsupported && getServicesInBatch(names, missingNames, services)) {
+            return services;
+        }
+        // old daemon, look up the services one by one
+        for (int i = 0; i < names.length; i++) {
+            if (services[i] == null) {
+                services[i] = getService(names[i]);
+            }
+        }
+        return services;
+    }
+
+    /**
+     * @return false if the batch lookup is not supported by the daemon
+     */
+    @Override
+    public boolean isClosed() {
+        return mDaemonClosed;
+    }
+
+    /**
+     * The status is not available from the old daemons.
+     */
+    private void readLookupStatus(Parcel reply) {
+        if (reply.dataAvail() >= 4 && reply.readInt() == LOOKUP_STATUS_CLOSED) {
+            mDaemonClosed = true;
+        }
+    }
+
+    private boolean getServicesInBatch(String[] names, String[] missingNames,
+            IBinder[] services) {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
+            data.writeStringArray(missingNames);
+            if (!mRemote.transact(GET_SERVICES_TRANSACTION, data, reply, 0)) {
+                if (DEBUG) LibLogger.d(TAG, "batch lookup not supported");
+                mBatchUnsupported = true;
+                return false;
+            }
+            reply.readException();
+            int count = reply.readInt();
+            for (int i = 0, j = 0; i < names.length && j < count; i++) {
+                if (services[i] == null) {
+                    IBinder binder = reply.readStrongBinder();
+                    IBinder target = reply.readStrongBinder();
+                    cacheService(names[i], binder, target);
+                    services[i] = binder;
+                    j++;
+                }
+            }
+            readLookupStatus(reply);
+        } catch (SecurityException e) {
+            // old daemons reject the unknown transactions in the permission check;
+            // if we are not the owner, the lookups one by one will throw it again
+            if (DEBUG) LibLogger.d(TAG, "batch lookup not supported: " + e);
+            mBatchUnsupported = true;
+            return false;
+        } catch (RemoteException e) {
+            LibLogger.w(TAG, "ssproxy died?", e);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        return true;
+    }
+
+    @Override
+    public SspStats getStats() {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
+            if (!mRemote.transact(GET_STATS_TRANSACTION, data, reply, 0)) {
+                if (DEBUG) LibLogger.d(TAG, "stats not supported");
+                return null;
+            }
+            reply.readException();
+            if (reply.readInt() != 0) {
+                return SspStats.CREATOR.createFromParcel(reply);
+            }
+        } catch (RemoteException e) {
+            LibLogger.w(TAG, "ssproxy died?", e);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        return null;
+    }
+
+    @Override
+    public void addService(String name, IBinder service) {
+        CachedService cached = mCachedServices.remove(name);
+        if (cached != null) {
+            cached.unlink();
+        }
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
         try {
             data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
             data.writeString(name);
@@ -321,5 +1456,238 @@ class SysServiceProxyProxy implements ISysServiceProxy {
         }
         return null;
     }
-}
 
+    @Override
+    public void notifyReplaced() {
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
+            // oneway, don't be blocked by the old daemon
+            mRemote.transact(NOTIFY_REPLACED_TRANSACTION, data, null, IBinder.FLAG_ONEWAY);
+        } catch (RemoteException e) {
+            if (DEBUG) LibLogger.d(TAG, "ssproxy died already: " + e);
+        } finally {
+            data.recycle();
+        }
+    }
+
+    @Override
+    public void attachOwner(IBinder token) {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
+            data.writeStrongBinder(token);
+            if (!mRemote.transact(ATTACH_OWNER_TRANSACTION, data, reply, 0)) {
+                if (DEBUG) LibLogger.d(TAG, "owner token not supported");
+                return;
+            }
+            reply.readException();
+            if (token instanceof OwnerToken) {
+                ((OwnerToken) token).setServiceDeathListener(
+                        new OwnerToken.ServiceDeathListener() {
+                    @Override
+                    public void onServiceDied(String name) {
+                        CachedService cached = mCachedServices.remove(name);
+                        if (cached != null) {
+                            cached.unlink();
+                        }
+                    }
+                });
+            }
+        } catch (RemoteException e) {
+            LibLogger.w(TAG, "ssproxy died?", e);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    @Override
+    public String[] getCachedServiceNames() {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
+            if (!mRemote.transact(GET_CACHED_NAMES_TRANSACTION, data, reply, 0)) {
+                if (DEBUG) LibLogger.d(TAG, "cached names not supported");
+                return null;
+            }
+            reply.readException();
+            return reply.createStringArray();
+        } catch (RemoteException e) {
+            LibLogger.w(TAG, "ssproxy died?", e);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        return null;
+    }
+
+    @Override
+    public boolean registerStandby(IBinder standby) {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
+            data.writeStrongBinder(standby);
+            if (!mRemote.transact(REGISTER_STANDBY_TRANSACTION, data, reply, 0)) {
+                if (DEBUG) LibLogger.d(TAG, "standby not supported");
+                return false;
+            }
+            reply.readException();
+            return reply.readInt() != 0;
+        } catch (RemoteException e) {
+            LibLogger.w(TAG, "ssproxy died?", e);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        return false;
+    }
+
+    @Override
+    public void dismissStandby() {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
+            // the old daemons reject the unknown transactions from the apps
+            // with SecurityException, but return false for root
+            if (!mRemote.transact(DISMISS_STANDBY_TRANSACTION, data, reply, 0)) {
+                if (DEBUG) LibLogger.d(TAG, "dismissing standby not supported");
+                return;
+            }
+            reply.readException();
+        } catch (SecurityException e) {
+            if (DEBUG) LibLogger.d(TAG, "dismissing standby not supported: " + e);
+        } catch (RemoteException e) {
+            LibLogger.w(TAG, "ssproxy died?", e);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    @Override
+    public int shutdown(long drainTimeoutMillis) {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
+            data.writeLong(drainTimeoutMillis);
+            if (!mRemote.transact(SHUTDOWN_TRANSACTION, data, reply, 0)) {
+                if (DEBUG) LibLogger.d(TAG, "shutdown not supported");
+                return SHUTDOWN_REJECTED;
+            }
+            reply.readException();
+            return reply.readInt();
+        } catch (RemoteException e) {
+            LibLogger.w(TAG, "ssproxy died?", e);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        return SHUTDOWN_REJECTED;
+    }
+
+    @Override
+    public int addTenant(int ownerUid, String pkgName, int sspVersion,
+            String usageProfilePath) {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ISysServiceProxy.SSP_DESCRIPTOR);
+            data.writeInt(ownerUid);
+            data.writeString(pkgName);
+            data.writeInt(sspVersion);
+            if (usageProfilePath != null) {
+                data.writeString(usageProfilePath);
+            }
+            if (!mRemote.transact(ADD_TENANT_TRANSACTION, data, reply, 0)) {
+                if (DEBUG) LibLogger.d(TAG, "shared daemon not supported");
+                return 0;
+            }
+            reply.readException();
+            return reply.readInt();
+        } catch (RemoteException e) {
+            LibLogger.w(TAG, "ssproxy died?", e);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        return 0;
+    }
+
+    @Nullable
+    private IBinder getCachedService(String name) {
+        CachedService cached = mCachedServices.get(name);
+        if (cached != null && cached.isAlive()) {
+            return cached.mBinder;
+        }
+        return null;
+    }
+
+    private void cacheService(String name, @Nullable IBinder binder, @Nullable IBinder target) {
+        if (binder == null) {
+            return;
+        }
+        CachedService cached = new CachedService(name, binder, target);
+        if (!cached.link()) {
+            return;
+        }
+        CachedService old = mCachedServices.put(name, cached);
+        if (old != null) {
+            old.unlink();
+        }
+    }
+
+    private class CachedService implements IBinder.DeathRecipient {
+        private String mName;
+        private IBinder mBinder;
+        // only to watch its death and never called, null unless from a v9 daemon
+        private IBinder mTarget;
+
+        CachedService(String name, @NonNull IBinder binder, @Nullable IBinder target) {
+            mName = name;
+            mBinder = binder;
+            mTarget = target;
+        }
+
+        boolean isAlive() {
+            return mBinder.isBinderAlive() && (mTarget == null || mTarget.isBinderAlive());
+        }
+
+        boolean link() {
+            try {
+                mBinder.linkToDeath(this, 0);
+            } catch (RemoteException e) {
+                return false;
+            }
+            if (mTarget != null) {
+                try {
+                    mTarget.linkToDeath(this, 0);
+                } catch (RemoteException e) {
+                    mBinder.unlinkToDeath(this, 0);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void unlink() {
+            mBinder.unlinkToDeath(this, 0);
+            if (mTarget != null) {
+                mTarget.unlinkToDeath(this, 0);
+            }
+        }
+
+        @Override
+        public void binderDied() {
+            if (DEBUG) LibLogger.d(TAG, "cached service died: " + mName);
+            if (mCachedServices.remove(mName, this)) {
+                unlink();
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package me.ycdev.android.lib.ssproxy.proxy;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of transactions, grouped by an int key
+ * (transaction code or calling uid). All memory is allocated up front,
+ * so {@link #record(int, long, boolean)} never allocates. It doesn't lock either:
+ * the counters are striped by thread, and summed up by {@link #snapshot(List)},
+ * which may see a transaction half recorded.
+ */
+class TransactionStats {
+    private static final long EMPTY_SLOT = 0;
+    private static final long USED_SLOT_FLAG = 1L << 32;
+    private static final int STRIPES = 4; // power of 2
+
+    private final String mScope;
+    private final int mCapacity;
+    // the last slot is for the keys which cannot be put into the table;
+    // 0 if empty, or USED_SLOT_FLAG | key
+    private final AtomicLongArray mSlotKeys;
+    // [stripe * (capacity + 1) + slot]
+    private final AtomicLongArray mCounts;
+    private final AtomicLongArray mErrors;
+    private final AtomicLongArray mTotalNanos;
+    private final AtomicLongArray mMaxNanos;
+    private final AtomicLongArray mBuckets;
+
+    /**
+     * @param scope Name of this group, such as "ssp", "uid" and "service:power"
+     * @param capacity Max count of different keys
+     */
+    TransactionStats(String scope, int capacity) {
+        mScope = scope;
+        mCapacity = capacity;
+        mSlotKeys = new AtomicLongArray(capacity + 1);
+        mCounts = new AtomicLongArray((capacity + 1) * STRIPES);
+        mErrors = new AtomicLongArray((capacity + 1) * STRIPES);
+        mTotalNanos = new AtomicLongArray((capacity + 1) * STRIPES);
+        mMaxNanos = new AtomicLongArray(capacity + 1);
+        mBuckets = new AtomicLongArray((capacity + 1) * SspStats.BUCKET_COUNT);
+    }
+
+    public String getScope() {
+        return mScope;
+    }
+
+    public void record(int key, long durationNanos, boolean failed) {
+        int slot = findSlot(key);
+        int index = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * (mCapacity + 1)
+                + slot;
+        mCounts.incrementAndGet(index);
+        if (failed) {
+            mErrors.incrementAndGet(index);
+        }
+        mTotalNanos.addAndGet(index, durationNanos);
+        long maxNanos = mMaxNanos.get(slot);
+        while (durationNanos > maxNanos && !mMaxNanos.compareAndSet(slot, maxNanos,
+                durationNanos)) {
+            maxNanos = mMaxNanos.get(slot);
+        }
+        mBuckets.incrementAndGet(slot * SspStats.BUCKET_COUNT
+                + SspStats.getBucketIndex(durationNanos));
+    }
+
+    private int findSlot(int key) {
+        long usedKey = USED_SLOT_FLAG | (key & 0xffffffffL);
+        int start = (key & 0x7fffffff) % mCapacity;
+        for (int i = 0; i < mCapacity; i++) {
+            int slot = (start + i) % mCapacity;
+            long slotKey = mSlotKeys.get(slot);
+            if (slotKey == EMPTY_SLOT) {
+                if (mSlotKeys.compareAndSet(slot, EMPTY_SLOT, usedKey)) {
+                    return slot;
+                }
+                slotKey = mSlotKeys.get(slot); // claimed by another thread
+            }
+            if (slotKey == usedKey) {
+                return slot;
+            }
+        }
+        return mCapacity; // the overflow slot
+    }
+
+    public void snapshot(List<SspStats.Entry> out) {
+        for (int slot = 0; slot <= mCapacity; slot++) {
+            long count = 0;
+            long errors = 0;
+            long totalNanos = 0;
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                int index = stripe * (mCapacity + 1) + slot;
+                count += mCounts.get(index);
+                errors += mErrors.get(index);
+                totalNanos += mTotalNanos.get(index);
+            }
+            if (count == 0) {
+                continue;
+            }
+            long[] buckets = new long[SspStats.BUCKET_COUNT];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = mBuckets.get(slot * SspStats.BUCKET_COUNT + i);
+            }
+            int key = slot == mCapacity ? SspStats.Entry.KEY_OTHERS : (int) mSlotKeys.get(slot);
+            out.add(new SspStats.Entry(mScope, key, count, errors, totalNanos,
+                    mMaxNanos.get(slot), buckets));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package me.ycdev.android.lib.ssproxy.proxy;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-capacity flight recorder of the forwarded transactions.
+ * <p>All records are kept in preallocated atomic arrays. Writers claim slots without
+ * locking, and each slot is guarded like a seqlock: its sequence number is cleared before
+ * the fields are written, and set after them. {@link #dump(PrintWriter)} copies a slot
+ * and checks its sequence number again, so the slots being written are skipped.</p>
+ */
+class TransactionTraceRing {
+    static final int DEFAULT_CAPACITY = 256;
+
+    private final int mCapacity;
+    private final AtomicLong mNextSeq = new AtomicLong();
+    // the atomic arrays keep the order of the writes, and the longs from tearing
+    private final AtomicLongArray mSeqs;
+    private final AtomicIntegerArray mNameIds;
+    private final AtomicIntegerArray mCodes;
+    private final AtomicIntegerArray mFlags;
+    private final AtomicIntegerArray mUids;
+    private final AtomicIntegerArray mPids;
+    private final AtomicIntegerArray mDataSizes;
+    private final AtomicIntegerArray mReplySizes;
+    private final AtomicLongArray mStartTimes;
+    private final AtomicLongArray mEndTimes;
+
+    private final ArrayList<String> mNames = new ArrayList<>();
+
+    TransactionTraceRing(int capacity) {
+        mCapacity = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+        mSeqs = new AtomicLongArray(mCapacity);
+        for (int i = 0; i < mCapacity; i++) {
+            mSeqs.set(i, -1); // empty
+        }
+        mNameIds = new AtomicIntegerArray(mCapacity);
+        mCodes = new AtomicIntegerArray(mCapacity);
+        mFlags = new AtomicIntegerArray(mCapacity);
+        mUids = new AtomicIntegerArray(mCapacity);
+        mPids = new AtomicIntegerArray(mCapacity);
+        mDataSizes = new AtomicIntegerArray(mCapacity);
+        mReplySizes = new AtomicIntegerArray(mCapacity);
+        mStartTimes = new AtomicLongArray(mCapacity);
+        mEndTimes = new AtomicLongArray(mCapacity);
+    }
+
+    /**
+     * Get the id of the service name used in the records.
+     * Should be invoked when the service is wrapped, not for every transaction.
+     */
+    public int getNameId(String name) {
+        synchronized (mNames) {
+            int id = mNames.indexOf(name);
+            if (id < 0) {
+                id = mNames.size();
+                mNames.add(name);
+            }
+            return id;
+        }
+    }
+
+    public void record(int nameId, int code, int flags, int uid, int pid, int dataSize,
+            int replySize, long startTime, long endTime) {
+        long seq = mNextSeq.getAndIncrement();
+        int index = (int) (seq % mCapacity);
+        // the fields cannot be written before the slot is marked as being written
+        mSeqs.set(index, -1);
+        mNameIds.lazySet(index, nameId);
+        mCodes.lazySet(index, code);
+        mFlags.lazySet(index, flags);
+        mUids.lazySet(index, uid);
+        mPids.lazySet(index, pid);
+        mDataSizes.lazySet(index, dataSize);
+        mReplySizes.lazySet(index, replySize);
+        mStartTimes.lazySet(index, startTime);
+        mEndTimes.lazySet(index, endTime);
+        // published after all the fields
+        mSeqs.lazySet(index, seq);
+    }
+
+    public void dump(PrintWriter fout) {
+        long now = System.nanoTime();
+        long nextSeq = mNextSeq.get();
+        long firstSeq = Math.max(0, nextSeq - mCapacity);
+        fout.println("Transaction traces (" + (nextSeq - firstSeq) + "/" + nextSeq + "):");
+        fout.println("\t[seq] service code flags uid/pid data/reply bytes, started ago, duration");
+        for (long seq = firstSeq; seq < nextSeq; seq++) {
+            int index = (int) (seq % mCapacity);
+            if (mSeqs.get(index) != seq) {
+                continue; // being written or overwritten
+            }
+            int nameId = mNameIds.get(index);
+            int code = mCodes.get(index);
+            int flags = mFlags.get(index);
+            int uid = mUids.get(index);
+            int pid = mPids.get(index);
+            int dataSize = mDataSizes.get(index);
+            int replySize = mReplySizes.get(index);
+            long startTime = mStartTimes.get(index);
+            long endTime = mEndTimes.get(index);
+            if (mSeqs.get(index) != seq) {
+                continue; // overwritten while copying
+            }
+            String name;
+            synchronized (mNames) {
+                name = nameId < mNames.size() ? mNames.get(nameId) : String.valueOf(nameId);
+            }
+            fout.println("\t[" + seq + "] " + name + " " + code + " " + flags
+                    + " " + uid + "/" + pid + " " + dataSize + "/" + replySize
+                    + ", " + formatNanos(now - startTime)
+                    + ", " + formatNanos(endTime - startTime));
+        }
+    }
+
+    private static String formatNanos(long nanos) {
+        return (nanos / 1000) / 1000.0 + "ms";
+    }
+}
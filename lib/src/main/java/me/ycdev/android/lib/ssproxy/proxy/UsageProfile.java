@@ -0,0 +1,285 @@
+package me.ycdev.android.lib.ssproxy.proxy;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import me.ycdev.android.lib.ssproxy.utils.LibConfigs;
+import me.ycdev.android.lib.ssproxy.utils.LibLogger;
+
+/**
+ * Count the services requested by the owner, and persist the counts into a small file,
+ * so that the daemon can prefetch the most used services when it starts next time.
+ * <p>File format: one "count name" pair per line.</p>
+ * <p>The file is in the owner's directory but accessed by root, so it's never opened
+ * through a symbolic link, and it's owned and only accessible by the owner.</p>
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class UsageProfile {
+    private static final String TAG = "UsageProfile";
+    private static final boolean DEBUG = LibConfigs.DEBUG_LOG;
+
+    private static final int MAX_ENTRIES = 64;
+    // all the counts will be halved when one reaches it, so that the old usage fades out
+    private static final int MAX_COUNT = 1 << 16;
+    // the changes are saved at most once in this time
+    private static final long SAVE_DELAY = 10 * 1000; // 10 seconds
+    private static final long SAVE_THREAD_KEEP_ALIVE = 30 * 1000; // 30 seconds
+
+    private static ScheduledThreadPoolExecutor sSaveExecutor;
+
+    private final File mFile;
+    private final int mOwnerUid;
+    private final HashMap<String, Integer> mCounts = new HashMap<>();
+    private boolean mDirty;
+    private boolean mSaveScheduled;
+
+    private final Runnable mSaveTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (UsageProfile.this) {
+                mSaveScheduled = false;
+            }
+            save();
+        }
+    };
+
+    UsageProfile(@NonNull File file, int ownerUid) {
+        mFile = file;
+        mOwnerUid = ownerUid;
+    }
+
+    public synchronized void load() {
+        mCounts.clear();
+        BufferedReader reader = null;
+        try {
+            FileDescriptor fd = open(mFile, OsConstants.O_RDONLY | OsConstants.O_NOFOLLOW);
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(fd)));
+            if (getOwner(fd) != mOwnerUid) {
+                // may be a hard link to a file of others
+                if (DEBUG) LibLogger.w(TAG, "usage profile not owned by the owner");
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null && mCounts.size() < MAX_ENTRIES) {
+                int index = line.indexOf(' ');
+                if (index <= 0) {
+                    continue;
+                }
+                try {
+                    int count = Integer.parseInt(line.substring(0, index));
+                    if (count > 0) {
+                        mCounts.put(line.substring(index + 1), Math.min(count, MAX_COUNT));
+                    }
+                } catch (NumberFormatException e) {
+                    // bad line, skip it
+                }
+            }
+            if (DEBUG) LibLogger.d(TAG, "loaded " + mCounts.size() + " entries from " + mFile);
+        } catch (IOException e) {
+            if (DEBUG) LibLogger.d(TAG, "no usage profile: " + e);
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    public void record(String name) {
+        synchronized (this) {
+            Integer count = mCounts.get(name);
+            if (count == null) {
+                if (mCounts.size() >= MAX_ENTRIES) {
+                    removeLeastUsedLocked();
+                }
+                count = 0;
+            }
+            count++;
+            mCounts.put(name, count);
+            if (count >= MAX_COUNT) {
+                halveCountsLocked();
+            }
+            mDirty = true;
+            if (mSaveScheduled) {
+                return;
+            }
+            mSaveScheduled = true;
+        }
+        getSaveExecutor().schedule(mSaveTask, SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void removeLeastUsedLocked() {
+        String leastUsedName = null;
+        int leastCount = Integer.MAX_VALUE;
+        for (Map.Entry<String, Integer> entry : mCounts.entrySet()) {
+            if (entry.getValue() < leastCount) {
+                leastUsedName = entry.getKey();
+                leastCount = entry.getValue();
+            }
+        }
+        mCounts.remove(leastUsedName);
+    }
+
+    private void halveCountsLocked() {
+        Iterator<Map.Entry<String, Integer>> it = mCounts.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Integer> entry = it.next();
+            int count = entry.getValue() / 2;
+            if (count > 0) {
+                entry.setValue(count);
+            } else {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Get names of the most used services, from the most used one.
+     */
+    @NonNull
+    public synchronized String[] getTopNames(int count) {
+        ArrayList<Map.Entry<String, Integer>> entries = new ArrayList<>(mCounts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> lhs, Map.Entry<String, Integer> rhs) {
+                return rhs.getValue().compareTo(lhs.getValue());
+            }
+        });
+        int size = Math.min(count, entries.size());
+        String[] names = new String[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = entries.get(i).getKey();
+        }
+        return names;
+    }
+
+    /**
+     * Save the counts into the file if changed.
+     */
+    public void save() {
+        String content;
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Integer> entry : mCounts.entrySet()) {
+                sb.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+            }
+            content = sb.toString();
+        }
+
+        // write to a temp file first, the file may be read by the next daemon at the same time.
+        // The rename doesn't follow the symbolic link either.
+        File tmpFile = new File(mFile.getPath() + ".tmp" + Process.myPid());
+        //noinspection ResultOfMethodCallIgnored
+        tmpFile.delete(); // left by a killed daemon
+        Writer writer = null;
+        try {
+            FileDescriptor fd = open(tmpFile, OsConstants.O_WRONLY | OsConstants.O_CREAT
+                    | OsConstants.O_EXCL | OsConstants.O_NOFOLLOW);
+            writer = new OutputStreamWriter(new FileOutputStream(fd));
+            chown(fd, mOwnerUid);
+            writer.write(content);
+            writer.close();
+            writer = null;
+        } catch (IOException e) {
+            if (DEBUG) LibLogger.w(TAG, "failed to save the usage profile: " + e);
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        } finally {
+            closeQuietly(writer);
+        }
+        if (!tmpFile.renameTo(mFile)) {
+            if (DEBUG) LibLogger.w(TAG, "failed to rename the usage profile");
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Open the file with the flags, and mode 0600 if created.
+     */
+    private static FileDescriptor open(File file, int flags) throws IOException {
+        try {
+            return Os.open(file.getPath(), flags, OsConstants.S_IRUSR | OsConstants.S_IWUSR);
+        } catch (ErrnoException e) {
+            throw new IOException("failed to open " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static int getOwner(FileDescriptor fd) throws IOException {
+        try {
+            return Os.fstat(fd).st_uid;
+        } catch (ErrnoException e) {
+            throw new IOException("failed to stat: " + e.getMessage());
+        }
+    }
+
+    private static void chown(FileDescriptor fd, int uid) throws IOException {
+        try {
+            Os.fchown(fd, uid, uid);
+        } catch (ErrnoException e) {
+            throw new IOException("failed to chown: " + e.getMessage());
+        }
+    }
+
+    public synchronized void dump(PrintWriter fout) {
+        fout.println("Usage profile (" + mCounts.size() + "): " + mFile);
+        for (String name : getTopNames(mCounts.size())) {
+            fout.println("\t" + name + ": " + mCounts.get(name));
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getSaveExecutor() {
+        if (sSaveExecutor == null) {
+            sSaveExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "ssp-profile");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sSaveExecutor.setKeepAliveTime(SAVE_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS);
+            sSaveExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sSaveExecutor;
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -5,4 +5,5 @@ import me.ycdev.android.lib.ssproxy.BuildConfig;
 public class LibConfigs {
     public static final boolean DISABLE_LOG = BuildConfig.DISABLE_LOG;
     public static final boolean DEBUG_LOG = BuildConfig.DEBUG_LOG;
+    public static final int LOG_LEVEL = BuildConfig.LOG_LEVEL;
 }
@@ -5,42 +5,165 @@ import android.util.Log;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
+/**
+ * The log level can be changed at runtime, and is checked before any formatting.
+ * <p>The methods with "{}" templates format the message only if it will be written,
+ * so they can be used in hot paths. Logs can also be written into an in-memory
+ * ring buffer instead of logcat, and be dumped later.</p>
+ */
 public class LibLogger {
     public static final String TAG = "SSProxy";
 
+    // types of the template arguments, two bits for each argument
+    private static final int ARG_NONE = 0;
+    private static final int ARG_LONG = 1;
+    private static final int ARG_OBJECT = 2;
+    private static final int ARGS_MAX = 3;
+
+    private static volatile int sLevel = LibConfigs.LOG_LEVEL;
+    private static volatile boolean sLogcatEnabled = true;
+    private static volatile LogRingBuffer sRingBuffer;
+
+    /**
+     * @param level One of {@link Log#VERBOSE}, {@link Log#DEBUG} and so on.
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    public static boolean isLoggable(int level) {
+        return !LibConfigs.DISABLE_LOG && level >= sLevel;
+    }
+
+    public static void setLogcatEnabled(boolean enabled) {
+        sLogcatEnabled = enabled;
+    }
+
+    /**
+     * Write logs into an in-memory ring buffer.
+     * @param capacity Count of the records to keep. Zero disables the ring buffer.
+     */
+    public static void setRingBufferCapacity(int capacity) {
+        LogRingBuffer buffer = sRingBuffer;
+        if (capacity <= 0) {
+            sRingBuffer = null;
+        } else if (buffer == null || buffer.getCapacity() != capacity) {
+            sRingBuffer = new LogRingBuffer(capacity);
+        }
+    }
+
+    public static void dumpRingBuffer(PrintWriter fout) {
+        LogRingBuffer buffer = sRingBuffer;
+        if (buffer != null) {
+            buffer.dump(fout);
+        }
+    }
+
     public static void v(String subTag, String msg) {
-        if (LibConfigs.DISABLE_LOG) return;
-        Log.v(TAG, getLogMsg(subTag, msg));
+        if (!isLoggable(Log.VERBOSE)) return;
+        log(Log.VERBOSE, subTag, msg, ARG_NONE, 0, 0, null);
     }
 
     public static void d(String subTag, String msg) {
-        if (LibConfigs.DISABLE_LOG) return;
-        Log.d(TAG, getLogMsg(subTag, msg));
+        if (!isLoggable(Log.DEBUG)) return;
+        log(Log.DEBUG, subTag, msg, ARG_NONE, 0, 0, null);
+    }
+
+    /**
+     * @param template The message template, "{}" will be replaced by the argument.
+     */
+    public static void d(String subTag, String template, long arg1) {
+        if (!isLoggable(Log.DEBUG)) return;
+        log(Log.DEBUG, subTag, template, ARG_LONG, arg1, 0, null);
+    }
+
+    public static void d(String subTag, String template, long arg1, long arg2) {
+        if (!isLoggable(Log.DEBUG)) return;
+        log(Log.DEBUG, subTag, template, ARG_LONG | (ARG_LONG << 2), arg1, arg2, null);
+    }
+
+    public static void d(String subTag, String template, Object arg1) {
+        if (!isLoggable(Log.DEBUG)) return;
+        log(Log.DEBUG, subTag, template, ARG_OBJECT, 0, 0, arg1);
+    }
+
+    public static void d(String subTag, String template, Object arg1, long arg2) {
+        if (!isLoggable(Log.DEBUG)) return;
+        log(Log.DEBUG, subTag, template, ARG_OBJECT | (ARG_LONG << 2), arg2, 0, arg1);
     }
 
     public static void i(String subTag, String msg) {
-        if (LibConfigs.DISABLE_LOG) return;
-        Log.i(TAG, getLogMsg(subTag, msg));
+        if (!isLoggable(Log.INFO)) return;
+        log(Log.INFO, subTag, msg, ARG_NONE, 0, 0, null);
     }
 
     public static void w(String subTag, String msg) {
-        if (LibConfigs.DISABLE_LOG) return;
-        Log.w(TAG, getLogMsg(subTag, msg));
+        if (!isLoggable(Log.WARN)) return;
+        log(Log.WARN, subTag, msg, ARG_NONE, 0, 0, null);
     }
 
     public static void w(String subTag, String msg, Throwable e) {
-        if (LibConfigs.DISABLE_LOG) return;
-        Log.w(TAG, getLogMsg(subTag, msg + " Exception: " + getExceptionMsg(e)));
+        if (!isLoggable(Log.WARN)) return;
+        log(Log.WARN, subTag, msg + " Exception: " + getExceptionMsg(e), ARG_NONE, 0, 0, null);
     }
 
     public static void e(String subTag, String msg) {
-        if (LibConfigs.DISABLE_LOG) return;
-        Log.e(TAG, getLogMsg(subTag, msg));
+        if (!isLoggable(Log.ERROR)) return;
+        log(Log.ERROR, subTag, msg, ARG_NONE, 0, 0, null);
     }
 
     public static void e(String subTag, String msg, Throwable e) {
-        if (LibConfigs.DISABLE_LOG) return;
-        Log.e(TAG, getLogMsg(subTag, msg + " Exception: " + getExceptionMsg(e)));
+        if (!isLoggable(Log.ERROR)) return;
+        log(Log.ERROR, subTag, msg + " Exception: " + getExceptionMsg(e), ARG_NONE, 0, 0, null);
+    }
+
+    private static void log(int level, String subTag, String template, int argTypes,
+            long arg1, long arg2, Object objArg) {
+        LogRingBuffer buffer = sRingBuffer;
+        if (buffer != null) {
+            buffer.add(level, subTag, template, argTypes, arg1, arg2, objArg);
+        }
+        if (sLogcatEnabled) {
+            Log.println(level, TAG, getLogMsg(subTag,
+                    format(template, argTypes, arg1, arg2, objArg)));
+        }
+    }
+
+    /**
+     * Replace the "{}" placeholders in the template with the arguments.
+     * @param argTypes Types of the arguments in the order of the placeholders,
+     *                 two bits for each argument. The long arguments are taken
+     *                 from arg1 and arg2 in order.
+     */
+    static String format(String template, int argTypes, long arg1, long arg2, Object objArg) {
+        if (argTypes == ARG_NONE) {
+            return template;
+        }
+        StringBuilder sb = new StringBuilder(template.length() + 32);
+        int longArgIndex = 0;
+        int argIndex = 0;
+        int start = 0;
+        while (argIndex < ARGS_MAX) {
+            int type = (argTypes >> (argIndex * 2)) & 0x3;
+            int pos = template.indexOf("{}", start);
+            if (type == ARG_NONE || pos < 0) {
+                break;
+            }
+            sb.append(template, start, pos);
+            if (type == ARG_LONG) {
+                sb.append(longArgIndex++ == 0 ? arg1 : arg2);
+            } else {
+                sb.append(objArg);
+            }
+            argIndex++;
+            start = pos + 2;
+        }
+        sb.append(template, start, template.length());
+        return sb.toString();
     }
 
     private static String getLogMsg(String subTag, String msg) {
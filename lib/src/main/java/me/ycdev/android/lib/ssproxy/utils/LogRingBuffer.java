@@ -0,0 +1,86 @@
+package me.ycdev.android.lib.ssproxy.utils;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * In-memory log sink with fixed capacity. Records are kept in preallocated arrays
+ * and formatted only when they're dumped, so adding a record doesn't allocate.
+ */
+class LogRingBuffer {
+    private final int mCapacity;
+    private final long[] mTimes;
+    private final int[] mLevels;
+    private final String[] mSubTags;
+    private final String[] mTemplates;
+    private final int[] mArgTypes;
+    private final long[] mArgs1;
+    private final long[] mArgs2;
+    private final Object[] mObjectArgs;
+    private int mNext;
+    private long mTotal;
+
+    LogRingBuffer(int capacity) {
+        mCapacity = capacity;
+        mTimes = new long[capacity];
+        mLevels = new int[capacity];
+        mSubTags = new String[capacity];
+        mTemplates = new String[capacity];
+        mArgTypes = new int[capacity];
+        mArgs1 = new long[capacity];
+        mArgs2 = new long[capacity];
+        mObjectArgs = new Object[capacity];
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Add a record. See {@link LibLogger#format(String, int, long, long, Object)}
+     * for the arguments.
+     */
+    public synchronized void add(int level, String subTag, String template, int argTypes,
+            long arg1, long arg2, Object objArg) {
+        int index = mNext;
+        mTimes[index] = System.currentTimeMillis();
+        mLevels[index] = level;
+        mSubTags[index] = subTag;
+        mTemplates[index] = template;
+        mArgTypes[index] = argTypes;
+        mArgs1[index] = arg1;
+        mArgs2[index] = arg2;
+        mObjectArgs[index] = objArg;
+        mNext = (index + 1) % mCapacity;
+        mTotal++;
+    }
+
+    public synchronized void dump(PrintWriter fout) {
+        int count = (int) Math.min(mTotal, mCapacity);
+        fout.println("Log records (" + count + "/" + mTotal + "):");
+        SimpleDateFormat timeFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        int start = (mNext - count + mCapacity) % mCapacity;
+        for (int i = 0; i < count; i++) {
+            int index = (start + i) % mCapacity;
+            fout.println("\t" + timeFormat.format(new Date(mTimes[index])) + " "
+                    + getLevelName(mLevels[index]) + " [" + mSubTags[index] + "] "
+                    + LibLogger.format(mTemplates[index], mArgTypes[index], mArgs1[index],
+                            mArgs2[index], mObjectArgs[index]));
+        }
+    }
+
+    private static String getLevelName(int level) {
+        switch (level) {
+            case Log.VERBOSE: return "V";
+            case Log.DEBUG: return "D";
+            case Log.INFO: return "I";
+            case Log.WARN: return "W";
+            case Log.ERROR: return "E";
+            default: return String.valueOf(level);
+        }
+    }
+}